@@ -0,0 +1,118 @@
+package com.offerready.xslt.benchmark;
+
+import com.databasesandlife.util.gwtsafe.ConfigurationException;
+import com.offerready.xslt.DocumentGenerator;
+import com.offerready.xslt.DocumentOutputDefinition;
+import com.offerready.xslt.DocumentOutputDefinition.OutputConversion;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import com.offerready.xslt.XsltParameters;
+import com.offerready.xslt.destination.DocumentGenerationDestination;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Creates the input documents and document generators used by the benchmarks.
+ *    <p>
+ * Input documents are invoices with a given number of lines. Their contents are pseudo-random
+ * but always the same for the same number of lines, so that results of different runs are comparable.
+ */
+public class BenchmarkFixtures {
+
+    protected static final @Nonnull String[] words = {
+        "bolt", "washer", "bracket", "hinge", "cable", "adapter", "panel", "sensor", "valve", "gasket",
+        "Schraube", "Mutter", "Kabel", "Gehäuse", "Dichtung", "Überwurf", "stainless", "galvanised", "M8", "24V",
+    };
+
+    /** Discards the document, but counts its bytes so that the JIT cannot remove the work */
+    public static class DiscardingDestination implements DocumentGenerationDestination {
+        public @CheckForNull String contentType = null;
+        public long byteCount = 0;
+
+        @Override public void setContentType(@Nonnull String contentType) { this.contentType = contentType; }
+        @Override public void setContentDispositionToDownload(@CheckForNull String filename) { }
+        @Override public @Nonnull OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override public void write(int b) { byteCount++; }
+                @Override public void write(@Nonnull byte[] b, int off, int len) { byteCount += len; }
+            };
+        }
+    }
+
+    /** Keeps the document in memory, to be used as the input to another benchmark */
+    public static class MemoryDestination implements DocumentGenerationDestination {
+        public final @Nonnull ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        @Override public void setContentType(@Nonnull String contentType) { }
+        @Override public void setContentDispositionToDownload(@CheckForNull String filename) { }
+        @Override public @Nonnull OutputStream getOutputStream() { return body; }
+    }
+
+    protected static @Nonnull String word(@Nonnull Random random) {
+        return words[random.nextInt(words.length)];
+    }
+
+    /** @return an invoice XML document, encoded as UTF-8 */
+    public static @Nonnull byte[] newInvoiceXml(int lineCount) {
+        var random = new Random(lineCount);
+        var result = new StringBuilder();
+        result.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        result.append("<invoice number=\"R-").append(10_000 + lineCount).append("\">\n");
+        result.append("  <customer><name>Müller &amp; Söhne GmbH</name><street>Hauptstraße 1</street><city>1010 Wien</city></customer>\n");
+        for (int i = 0; i < lineCount; i++) {
+            result.append("  <line>");
+            result.append("<sku>A-").append(100_000 + random.nextInt(900_000)).append("</sku>");
+            result.append("<description>");
+            for (int w = 0, count = 2 + random.nextInt(6); w < count; w++) result.append(w == 0 ? "" : " ").append(word(random));
+            result.append("</description>");
+            result.append("<quantity>").append(1 + random.nextInt(50)).append("</quantity>");
+            result.append("<price>").append(random.nextInt(100)).append(".").append(10 + random.nextInt(90)).append("</price>");
+            result.append("</line>\n");
+        }
+        result.append("</invoice>\n");
+        return result.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Copies the XSLT from the classpath into a temporary file, as the {@link DocumentGenerator} reads XSLTs from files.
+     * @param xsltName for example "invoice-html.xslt"
+     */
+    public static @Nonnull File extractXslt(@Nonnull String xsltName) {
+        try (var in = BenchmarkFixtures.class.getResourceAsStream(xsltName)) {
+            if (in == null) throw new IllegalArgumentException("XSLT not found: " + xsltName);
+            var file = File.createTempFile("benchmark-", "-" + xsltName);
+            file.deleteOnExit();
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return file;
+        }
+        catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    /**
+     * @param xsltNameOrNull for example "invoice-html.xslt", or null for no XSLT
+     * @return a generator whose XSLT is already compiled
+     */
+    public static @Nonnull DocumentGenerator newDocumentGenerator(
+        @CheckForNull String xsltNameOrNull, @Nonnull OutputConversion outputConversion
+    ) throws ConfigurationException {
+        var defn = new DocumentOutputDefinition(new XsltParameters(Map.of("", Map.of("title", "Rechnung"))));
+        defn.xsltFileOrNull = xsltNameOrNull == null ? null : extractXslt(xsltNameOrNull);
+        defn.outputConversion = outputConversion;
+
+        var threads = new XsltCompilationThreads();
+        var result = new DocumentGenerator(threads, defn);
+        threads.execute();
+        return result;
+    }
+}
@@ -0,0 +1,24 @@
+package com.offerready.xslt.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command-line options, always adding the GC profiler,
+ * so that each result shows the allocation rate ("gc.alloc.rate.norm" is bytes per operation) next to the throughput.
+ *    <p>
+ * For example <code>java -jar target/benchmarks.jar DocumentGeneratorBenchmark -p output=pdf -rf json</code>
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        var commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) { commandLine.showHelp(); return; }
+        if (commandLine.shouldList()) { new Runner(commandLine).list(); return; }
+
+        var options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,65 @@
+package com.offerready.xslt.benchmark;
+
+import com.offerready.xslt.DocumentGenerator;
+import com.offerready.xslt.DocumentOutputDefinition.OutputConversion;
+import com.offerready.xslt.benchmark.BenchmarkFixtures.DiscardingDestination;
+import org.openjdk.jmh.annotations.*;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates an invoice via each {@link OutputConversion}, from parsing the input XML to the last byte of the output.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DocumentGeneratorBenchmark {
+
+    public enum Output {
+        /** No XSLT; the input XML is written to the output */
+        identity(null, OutputConversion.none),
+        /** XSLT producing HTML */
+        html("invoice-html.xslt", OutputConversion.none),
+        htmlBody("invoice-html.xslt", OutputConversion.htmlToHtmlBody),
+        json("invoice-json.xslt", OutputConversion.xmlToJson),
+        pdf("invoice-fo.xslt", OutputConversion.xslFoToPdf),
+        excel("invoice-excel.xslt", OutputConversion.excelXmlToExcelBinary),
+        xlsx("invoice-excel.xslt", OutputConversion.excelXmlToXlsx);
+
+        public final String xsltNameOrNull;
+        public final OutputConversion outputConversion;
+
+        Output(String xsltNameOrNull, OutputConversion outputConversion) {
+            this.xsltNameOrNull = xsltNameOrNull;
+            this.outputConversion = outputConversion;
+        }
+    }
+
+    @Param({"identity", "html", "htmlBody", "json", "pdf", "excel", "xlsx"})
+    public Output output;
+
+    @Param({"10", "1000"})
+    public int lineCount;
+
+    protected DocumentGenerator generator;
+    protected byte[] inputXml;
+
+    @Setup
+    public void setup() throws Exception {
+        generator = BenchmarkFixtures.newDocumentGenerator(output.xsltNameOrNull, output.outputConversion);
+        generator.assertTemplateValid();
+        inputXml = BenchmarkFixtures.newInvoiceXml(lineCount);
+    }
+
+    @Benchmark
+    public long transform() throws Exception {
+        var destination = new DiscardingDestination();
+        generator.transform(destination, new StreamSource(new ByteArrayInputStream(inputXml)), true, null, null);
+        return destination.byteCount;
+    }
+}
@@ -0,0 +1,42 @@
+package com.offerready.xslt.benchmark;
+
+import com.offerready.xslt.DocumentOutputDefinition.OutputConversion;
+import com.offerready.xslt.HtmlBodyExtractor;
+import com.offerready.xslt.benchmark.BenchmarkFixtures.MemoryDestination;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Extracts the body from the HTML produced by "invoice-html.xslt", ignoring its jQuery script.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HtmlBodyExtractorBenchmark {
+
+    @Param({"10", "1000"})
+    public int lineCount;
+
+    protected final HtmlBodyExtractor extractor = new HtmlBodyExtractor().addScriptToIgnore("jquery");
+    protected String html;
+
+    @Setup
+    public void setup() throws Exception {
+        var generator = BenchmarkFixtures.newDocumentGenerator("invoice-html.xslt", OutputConversion.none);
+        var destination = new MemoryDestination();
+        generator.transform(destination, new ByteArrayInputStream(BenchmarkFixtures.newInvoiceXml(lineCount)), true, null, null);
+        html = destination.body.toString(UTF_8);
+    }
+
+    @Benchmark
+    public String extractBody() {
+        return extractor.extractBody(html);
+    }
+}
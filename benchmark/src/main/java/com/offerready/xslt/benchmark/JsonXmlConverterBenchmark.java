@@ -0,0 +1,73 @@
+package com.offerready.xslt.benchmark;
+
+import com.offerready.xslt.DocumentOutputDefinition.OutputConversion;
+import com.offerready.xslt.JsonXmlConverter;
+import com.offerready.xslt.JsonXmlConverter.XmlToJsonContentHandler;
+import com.offerready.xslt.WeaklyCachedXsltTransformer;
+import com.offerready.xslt.benchmark.BenchmarkFixtures.MemoryDestination;
+import net.sf.saxon.s9api.SAXDestination;
+import net.sf.saxon.s9api.XdmNode;
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Element;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Converts between JSON and XML in both directions, without XSLT.
+ *    <p>
+ * The XML is the output of the "invoice-json.xslt" and the JSON is its conversion,
+ * so both directions process the same document.
+ *    <p>
+ * {@link #convertXmlToJsonViaContentHandler()} is the path used by the {@link OutputConversion#xmlToJson} conversion,
+ * where Saxon sends the XSLT output as SAX events to a {@link XmlToJsonContentHandler}.
+ * Here the events come from a Saxon tree built in advance, so, as with the XSLT, no XML is parsed.
+ * {@link #convertXmlToJson()} is the older path via a string, which parses the XML.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonXmlConverterBenchmark {
+
+    @Param({"10", "1000"})
+    public int lineCount;
+
+    protected final JsonXmlConverter converter = new JsonXmlConverter();
+    protected String xml, json;
+    protected XdmNode xmlTree;
+
+    @Setup
+    public void setup() throws Exception {
+        var generator = BenchmarkFixtures.newDocumentGenerator("invoice-json.xslt", OutputConversion.none);
+        var destination = new MemoryDestination();
+        generator.transform(destination, new ByteArrayInputStream(BenchmarkFixtures.newInvoiceXml(lineCount)), true, null, null);
+        xml = destination.body.toString(UTF_8);
+        json = converter.convertXmlToJson(xml);
+        xmlTree = WeaklyCachedXsltTransformer.getSaxonProcessor().newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+    }
+
+    @Benchmark
+    public String convertXmlToJson() {
+        return converter.convertXmlToJson(xml);
+    }
+
+    @Benchmark
+    public long convertXmlToJsonViaContentHandler() throws Exception {
+        var result = new ByteArrayOutputStream();
+        WeaklyCachedXsltTransformer.getSaxonProcessor().writeXdmValue(xmlTree, new SAXDestination(new XmlToJsonContentHandler(result)));
+        return result.size();
+    }
+
+    @Benchmark
+    public Element convertJsonToXml() throws Exception {
+        return converter.convertJsonToXml(new StringReader(json), "invoice");
+    }
+}
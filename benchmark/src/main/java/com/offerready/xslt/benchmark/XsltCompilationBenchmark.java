@@ -0,0 +1,52 @@
+package com.offerready.xslt.benchmark;
+
+import com.databasesandlife.util.DomParser;
+import com.offerready.xslt.WeaklyCachedXsltTransformer;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.Xslt;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiles each XSLT via {@link WeaklyCachedXsltTransformer}.
+ *    <p>
+ * Each invocation uses a new cache key, so that the XSLT is compiled every time rather than being found in the cache.
+ * The XSLT is parsed once in advance, so this measures only the compilation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XsltCompilationBenchmark {
+
+    @Param({"invoice-html.xslt", "invoice-json.xslt", "invoice-fo.xslt", "invoice-excel.xslt"})
+    public String xsltName;
+
+    protected final AtomicLong nextCacheKey = new AtomicLong();
+    protected Document xsltDocument;
+
+    @Setup
+    public void setup() throws Exception {
+        xsltDocument = DomParser.newDocumentBuilder().parse(BenchmarkFixtures.extractXslt(xsltName));
+    }
+
+    @Benchmark
+    public WeaklyCachedXsltTransformer compile() throws Exception {
+        var cacheKey = xsltName + "-" + nextCacheKey.incrementAndGet();
+        var xslt = new Xslt() {
+            @Override public String calculateCacheKey() { return cacheKey; }
+            @Override public Document parseDocument() { return xsltDocument; }
+        };
+
+        var threads = new XsltCompilationThreads();
+        var result = WeaklyCachedXsltTransformer.getTransformerOrScheduleCompilation(threads, xsltName, xslt);
+        threads.execute();
+        result.assertValid();
+        return result;
+    }
+}
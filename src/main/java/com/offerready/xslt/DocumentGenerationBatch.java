@@ -0,0 +1,161 @@
+package com.offerready.xslt;
+
+import com.databasesandlife.util.Timer;
+import com.offerready.xslt.destination.DocumentGenerationDestination;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.transform.Source;
+import javax.xml.transform.URIResolver;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Generates many documents with one {@link DocumentGenerator}, for example invoices in an overnight run.
+ *    <p>
+ * Jobs are executed on a number of threads. The compiled XSLT, the FOP factory and the XSLT parameters
+ * are shared by all jobs, as they belong to the {@link DocumentGenerator}.
+ * Jobs are read from the stream only as threads become free, so the stream may create its inputs lazily,
+ * and a stream of any length does not lead to all its inputs being held in memory.
+ *    <p>
+ * A job which fails does not stop the other jobs; its exception is available in its {@link JobResult}.
+ *    <p>
+ * Results are passed to an optional listener as jobs complete, and are then discarded, apart from those of jobs
+ * which failed, and the latency of each job, for the {@link Statistics}.
+ * Jobs, with their inputs and destinations, are not held once they have completed.
+ */
+public class DocumentGenerationBatch {
+
+    public record Job(
+        @Nonnull Source input, @Nonnull DocumentGenerationDestination destination, @CheckForNull String language
+    ) { }
+
+    /** @param jobIndex the position of the job in the stream, starting at 0 */
+    public record JobResult(long jobIndex, @Nonnull Duration latency, @CheckForNull Exception errorOrNull) {
+        public boolean isSuccess() { return errorOrNull == null; }
+    }
+
+    public record Statistics(
+        int jobCount, int errorCount, @Nonnull Duration elapsed, double jobsPerSecond,
+        @Nonnull Duration minLatency, @Nonnull Duration medianLatency, @Nonnull Duration p95Latency, @Nonnull Duration maxLatency
+    ) { }
+
+    /** @param errors the results of the jobs which failed, in order of their position in the stream */
+    public record Result(@Nonnull List<JobResult> errors, @Nonnull Statistics statistics) { }
+
+    /** Collects the results as jobs complete, from any thread */
+    protected static class ResultCollector {
+        protected @Nonnull long[] latencyNanos = new long[1024];
+        protected int jobCount = 0;
+        protected final @Nonnull List<JobResult> errors = new ArrayList<>();
+        protected @CheckForNull RuntimeException listenerExceptionOrNull = null;
+
+        protected synchronized void add(@Nonnull JobResult result) {
+            if (jobCount == latencyNanos.length) latencyNanos = Arrays.copyOf(latencyNanos, jobCount * 2);
+            latencyNanos[jobCount++] = result.latency.toNanos();
+            if ( ! result.isSuccess()) errors.add(result);
+        }
+
+        protected synchronized void addListenerException(@Nonnull RuntimeException e) {
+            if (listenerExceptionOrNull == null) listenerExceptionOrNull = e;
+            else listenerExceptionOrNull.addSuppressed(e);
+        }
+
+        protected synchronized @Nonnull Result newResult(@Nonnull Duration elapsed) {
+            if (listenerExceptionOrNull != null) throw listenerExceptionOrNull;
+            var sortedErrors = new ArrayList<>(errors);
+            sortedErrors.sort(Comparator.comparingLong(JobResult::jobIndex));
+            return new Result(sortedErrors, newStatistics(Arrays.copyOf(latencyNanos, jobCount), errors.size(), elapsed));
+        }
+    }
+
+    protected final @Nonnull DocumentGenerator generator;
+    protected final int maxConcurrency;
+    protected @CheckForNull URIResolver uriResolverOrNull = null;
+
+    /** @param maxConcurrency the number of jobs which are executed at once, for example the number of CPU cores */
+    public DocumentGenerationBatch(@Nonnull DocumentGenerator generator, int maxConcurrency) {
+        if (maxConcurrency < 1) throw new IllegalArgumentException("maxConcurrency=" + maxConcurrency);
+        this.generator = generator;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public DocumentGenerationBatch(@Nonnull DocumentGenerator generator) {
+        this(generator, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** @param uriResolverOrNull passed to every job, see {@link DocumentGenerator#transform(DocumentGenerationDestination, Source, boolean, URIResolver, String)} */
+    public void setUriResolver(@CheckForNull URIResolver uriResolverOrNull) {
+        this.uriResolverOrNull = uriResolverOrNull;
+    }
+
+    protected @Nonnull JobResult execute(long jobIndex, @Nonnull Job job) {
+        var start = System.nanoTime();
+        Exception error = null;
+        try { generator.transform(job.destination, job.input, true, uriResolverOrNull, job.language); }
+        catch (Exception e) { error = e; }
+        return new JobResult(jobIndex, Duration.ofNanos(System.nanoTime() - start), error);
+    }
+
+    protected static @Nonnull Statistics newStatistics(@Nonnull long[] latencyNanos, int errorCount, @Nonnull Duration elapsed) {
+        Arrays.sort(latencyNanos);
+        var jobsPerSecond = elapsed.isZero() ? 0 : latencyNanos.length / (elapsed.toNanos() / 1e9);
+        return new Statistics(latencyNanos.length, errorCount, elapsed, jobsPerSecond,
+            Duration.ofNanos(percentile(latencyNanos, 0)), Duration.ofNanos(percentile(latencyNanos, 50)),
+            Duration.ofNanos(percentile(latencyNanos, 95)), Duration.ofNanos(percentile(latencyNanos, 100)));
+    }
+
+    protected static long percentile(@Nonnull long[] sorted, int percent) {
+        if (sorted.length == 0) return 0;
+        var index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Executes all jobs, and returns once they have all completed.
+     * @param onJobCompleted called with the result of each job as it completes, on the thread which executed the job,
+     *                       so possibly concurrently for different jobs. If it throws an exception, the other jobs
+     *                       are still executed, and the exception is thrown by this method at the end.
+     */
+    public @Nonnull Result run(@Nonnull Stream<Job> jobs, @Nonnull Consumer<JobResult> onJobCompleted) throws InterruptedException {
+        var start = System.nanoTime();
+        var permits = new Semaphore(maxConcurrency);
+        var collector = new ResultCollector();
+        var executor = Executors.newFixedThreadPool(maxConcurrency);
+        try (var ignored = new Timer("Generate batch of documents")) {
+            long jobIndex = 0;
+            for (var iterator = jobs.iterator(); iterator.hasNext(); jobIndex++) {
+                permits.acquire();
+                var job = iterator.next();
+                var index = jobIndex;
+                executor.execute(() -> {
+                    try {
+                        var result = execute(index, job);
+                        collector.add(result);
+                        try { onJobCompleted.accept(result); }
+                        catch (RuntimeException e) { collector.addListenerException(e); }
+                    }
+                    finally { permits.release(); }
+                });
+            }
+
+            permits.acquire(maxConcurrency); // Wait for all jobs to complete
+            return collector.newResult(Duration.ofNanos(System.nanoTime() - start));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Executes all jobs, and returns once they have all completed */
+    public @Nonnull Result run(@Nonnull Stream<Job> jobs) throws InterruptedException {
+        return run(jobs, r -> { });
+    }
+}
@@ -0,0 +1,47 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.DocumentOutputDefinition.OutputConversion;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.time.Duration;
+
+/**
+ * Receives measurements of XSLT compilation and document generation, for example to find slow reports in production.
+ *    <p>
+ * Set an implementation with {@link WeaklyCachedXsltTransformer.XsltCompilationThreads#setMetrics(DocumentGenerationMetrics)},
+ * before creating the {@link DocumentGenerator}s with those threads.
+ * The default, {@link #none}, ignores all measurements; {@link InMemoryDocumentGenerationMetrics} keeps them in memory.
+ * Methods are called from many threads at once, and should return quickly.
+ *    <p>
+ * The "template" is the absolute path of the XSLT file, or "identity" if no XSLT is used.
+ */
+public interface DocumentGenerationMetrics {
+
+    @Nonnull DocumentGenerationMetrics none = new DocumentGenerationMetrics() { };
+
+    /** An XSLT has been compiled, successfully or not */
+    default void recordCompilation(@Nonnull String template, @Nonnull Duration duration) { }
+
+    /**
+     * A cache has been consulted.
+     * @param cache for example "xslt" for compiled XSLTs
+     */
+    default void recordCacheLookup(@Nonnull String cache, @Nonnull String template, boolean hit) { }
+
+    /** A transformation has started; it will be followed by a call to {@link #recordTransformationFinished} */
+    default void recordTransformationStarted(@Nonnull String template, @Nonnull OutputConversion conversion) { }
+
+    /**
+     * @param transformTime       the time from the start of the transformation until the output was complete
+     * @param postConversionTimeOrNull the part of the transformTime spent converting the XSLT output after the XSLT produced it,
+     *                            for example creating the PDF from the XSL-FO; null for {@link OutputConversion#none}.
+     *                            Where the conversion is streamed, this is the time from the end of the XSLT output.
+     * @param outputBytes         the number of bytes written to the destination
+     * @param success             false if an exception was thrown
+     */
+    default void recordTransformationFinished(
+        @Nonnull String template, @Nonnull OutputConversion conversion, @Nonnull Duration transformTime,
+        @CheckForNull Duration postConversionTimeOrNull, long outputBytes, boolean success
+    ) { }
+}
@@ -1,39 +1,57 @@
 package com.offerready.xslt;
 
 import com.databasesandlife.util.DomParser;
-import com.databasesandlife.util.MD5Hex;
 import com.databasesandlife.util.Timer;
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
+import com.offerready.xslt.DocumentOutputDefinition.OutputConversion;
+import com.offerready.xslt.JsonXmlConverter.XmlToJsonContentHandler;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.DocumentTemplateInvalidException;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.Xslt;
 import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
 import com.offerready.xslt.destination.DocumentGenerationDestination;
 import lombok.SneakyThrows;
-import org.apache.fop.apps.FopConfParser;
-import org.apache.fop.apps.FopFactoryBuilder;
+import net.sf.saxon.s9api.DOMDestination;
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SAXDestination;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XsltTransformer;
+import org.apache.fop.apps.FOPException;
 import org.apache.fop.apps.MimeConstants;
-import org.apache.fop.apps.io.ResourceResolverFactory;
-import org.apache.xmlgraphics.io.URIResolverAdapter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
-import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.URIResolver;
-import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.sax.SAXResult;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.StringWriter;
-import java.net.URI;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 /**
@@ -46,7 +64,7 @@ import java.util.function.Function;
  * the free version of Saxon called Saxon-HE.
  *    <p>
  * <li><b>Conversion after XSLT.</b> After the XSLT is applied, the resulting XML can be further processed.
- * XSL-FO to PDF, convert HTML to XML, and convert XML to JSON.
+ * XSL-FO to PDF, convert HTML to XML, convert XML to JSON, and extract the body of HTML.
  * </ul>
  *    <p>
  * Objects of this class reference the complied XSLT transfomer.
@@ -60,12 +78,95 @@ public class DocumentGenerator {
     
     protected final @Nonnull DocumentOutputDefinition defn;
     protected final @Nonnull WeaklyCachedXsltTransformer transformer;
-    protected @CheckForNull File fopBaseDirOrNull = null, fopConfigOrNull = null, imagesBase = null;
+    protected final @Nonnull String templateName;
+    protected @CheckForNull File fopBaseDirOrNull = null, fopConfigOrNull = null, imagesBase = null, fopFontCacheFileOrNull = null;
+
+    protected @Nonnull XslFoProcessing xslFoProcessing = XslFoProcessing.streaming;
+    protected @Nonnull Executor asyncExecutor = defaultAsyncExecutor;
+    protected @Nonnull DocumentGenerationMetrics metrics;
+    protected final @Nonnull List<String> htmlBodyScriptsToIgnore = new ArrayList<>();
+    protected @CheckForNull DocumentResultCache resultCacheOrNull = null;
+
+    protected static final @Nonnull Processor processor = WeaklyCachedXsltTransformer.getSaxonProcessor();
+    protected static final @Nonnull Executor defaultAsyncExecutor = newDaemonThreadPool("DocumentGenerator-async-");
+    protected static final @Nonnull FopFactoryCache fopFactoryCache = new FopFactoryCache(50, new FopImageCache(32 * 1024 * 1024));
+    protected static final @Nonnull FileMd5Cache xsltMd5Cache = new FileMd5Cache(10_000);
+    protected static final int warmUpPdfCount = 5;
+    protected static final @Nonnull Executor pipelineExecutor = newDaemonThreadPool("DocumentGenerator-pipeline-"); // Not the async executor, which might be full of transformations waiting for FOP
+    protected static final int pipelineBatchSize = 1_000, pipelineMaximumBatchCount = 32;
+
+    /** How the XSL-FO produced by the XSLT is passed to FOP, in the case of {@link OutputConversion#xslFoToPdf} */
+    public enum XslFoProcessing {
+        /** The XSLT output is sent as SAX events directly to FOP, without an intermediate document being built */
+        streaming,
+        /** The XSLT output is built as a DOM, which is then sent to FOP. Uses more memory, but the XSLT has completed before FOP starts */
+        dom,
+        /**
+         * The XSLT output is sent as SAX events to FOP, which runs on another thread, so that on a machine with several cores
+         * the XSLT and FOP run at the same time. For large documents, this takes less time than {@link #streaming}.
+         * A limited number of events wait for FOP, so memory use is limited as for {@link #streaming}.
+         */
+        pipelined
+    }
     
+    /** Measures one transformation, for {@link DocumentGenerationMetrics} */
+    protected static class TransformationMeasurement {
+        protected final long startNanos = System.nanoTime();
+        protected volatile long postConversionStartNanos = 0;
+        protected final @Nonnull AtomicLong outputBytes = new AtomicLong();
+
+        /** @return a destination which counts the bytes written to it */
+        protected @Nonnull DocumentGenerationDestination newCountingDestination(@Nonnull DocumentGenerationDestination destination) {
+            return new DocumentGenerationDestination() {
+                @Override public void setContentType(@Nonnull String contentType) {
+                    destination.setContentType(contentType);
+                }
+                @Override public void setContentDispositionToDownload(@CheckForNull String filename) {
+                    destination.setContentDispositionToDownload(filename);
+                }
+                @Override public @Nonnull OutputStream getOutputStream() {
+                    return new FilterOutputStream(destination.getOutputStream()) {
+                        @Override public void write(int b) throws IOException { out.write(b); outputBytes.incrementAndGet(); }
+                        @Override public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                            outputBytes.addAndGet(len);
+                        }
+                    };
+                }
+            };
+        }
+
+        /** The XSLT has produced its output, what follows is conversion of that output */
+        protected void startPostConversion() {
+            postConversionStartNanos = System.nanoTime();
+        }
+
+        /** @return a handler which calls {@link #startPostConversion()} when the XSLT output is complete */
+        protected @Nonnull ContentHandler newEndOfXsltOutputFilter(@Nonnull ContentHandler handler) {
+            var result = new XMLFilterImpl() {
+                @Override public void endDocument() throws SAXException {
+                    startPostConversion();
+                    super.endDocument();
+                }
+            };
+            result.setContentHandler(handler);
+            return result;
+        }
+
+        protected @Nonnull Duration getElapsed() {
+            return Duration.ofNanos(System.nanoTime() - startNanos);
+        }
+
+        protected @CheckForNull Duration getPostConversionTimeOrNull() {
+            var start = postConversionStartNanos;
+            return start == 0 ? null : Duration.ofNanos(System.nanoTime() - start);
+        }
+    }
+
     public static class StyleVisionXslt implements Xslt {
         public final @Nonnull File xsltFile;
         public StyleVisionXslt(@Nonnull File x) { xsltFile = x; }
-        @Override public @Nonnull String calculateCacheKey() { return MD5Hex.md5(xsltFile); }
+        @Override public @Nonnull String calculateCacheKey() { return xsltMd5Cache.md5(xsltFile); }
 
         @SneakyThrows(IOException.class)
         @Override public @Nonnull Document parseDocument() throws ConfigurationException {
@@ -104,6 +205,8 @@ public class DocumentGenerator {
     )
     throws ConfigurationException {
         this.defn = defn;
+        this.metrics = threads.getMetrics();
+        this.templateName = defn.xsltFileOrNull == null ? "identity" : defn.xsltFileOrNull.getAbsolutePath();
         if (defn.xsltFileOrNull == null)
             this.transformer = WeaklyCachedXsltTransformer.getIdentityTransformer();
         else 
@@ -121,124 +224,466 @@ public class DocumentGenerator {
         this.fopConfigOrNull = fopConfigOrNull;
     }
 
+    /**
+     * Where FOP stores the metrics of the fonts found in the directories of the FOP configuration, for example on a volume
+     * which persists across deployments, so that fonts are not scanned again after a restart.
+     * By default FOP uses a file in the user's home directory.
+     * @see FopFactoryCache
+     */
+    public void setFopFontCacheFile(@CheckForNull File fopFontCacheFileOrNull) {
+        this.fopFontCacheFileOrNull = fopFontCacheFileOrNull;
+    }
+
     public void setImagesBase(@Nonnull File imagesBase) {
         this.imagesBase = imagesBase;
     }
 
-    @SneakyThrows({TransformerException.class, IOException.class})
-    protected void writePlainXml(@Nonnull DocumentGenerationDestination response, @Nonnull Document xml) {
-        var systemProperties = System.getProperties();
-        systemProperties.remove("javax.xml.transform.TransformerFactory");
-        System.setProperties(systemProperties);
+    public void setXslFoProcessing(@Nonnull XslFoProcessing xslFoProcessing) {
+        this.xslFoProcessing = xslFoProcessing;
+    }
+
+    /**
+     * In the case of {@link OutputConversion#htmlToHtmlBody}, replace &lt;script src="..."&gt; elements whose source
+     * contains this string with a comment, see {@link HtmlBodyExtractor#addScriptToIgnore(String)}
+     */
+    public void addHtmlBodyScriptToIgnore(@Nonnull String scriptSubstring) {
+        htmlBodyScriptsToIgnore.add(scriptSubstring);
+    }
+
+    /**
+     * Reuse up to this number of XSLT transformers, rather than creating one per transformation.
+     * The pool belongs to the compiled XSLT, so it is shared with other generators using the same XSLT file.
+     * @see WeaklyCachedXsltTransformer#setTransformerPoolMaximumSize(int)
+     */
+    public void setTransformerPoolMaximumSize(int maximumSize) {
+        transformer.setTransformerPoolMaximumSize(maximumSize);
+    }
 
+    /**
+     * Write documents from the cache, if the same document has been generated before, see {@link DocumentResultCache}.
+     * By default, or if null, documents are always generated.
+     */
+    public void setResultCache(@CheckForNull DocumentResultCache resultCacheOrNull) {
+        this.resultCacheOrNull = resultCacheOrNull;
+    }
+
+    /** @return null if there is no pool */
+    public @CheckForNull WeaklyCachedXsltTransformer.TransformerPoolStatistics getTransformerPoolStatistics() {
+        return transformer.getTransformerPoolStatistics();
+    }
+
+    /**
+     * Daemon threads which are created as needed, as transformations may block e.g. on HTTP requests made by the XSLT,
+     * so that the number of threads should not be limited.
+     */
+    protected static @Nonnull Executor newDaemonThreadPool(@Nonnull String threadNamePrefix) {
+        var threadCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            var thread = new Thread(r, threadNamePrefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** The executor used by {@link #transformAsync}; by default daemon threads which are created as needed */
+    public void setAsyncExecutor(@Nonnull Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * The FOP factories shared by all objects of this class, for example to monitor hits and misses.
+     * Images read by FOP are held in a 32 MB {@link FopImageCache}, see {@link FopFactoryCache#getImageCacheOrNull()}.
+     */
+    public static @Nonnull FopFactoryCache getFopFactoryCache() {
+        return fopFactoryCache;
+    }
+
+    /**
+     * Sets where measurements of this generator's transformations are sent.
+     * By default, those set by {@link XsltCompilationThreads#setMetrics(DocumentGenerationMetrics)}.
+     */
+    public void setMetrics(@Nonnull DocumentGenerationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** The MD5s of XSLT files, used by {@link StyleVisionXslt} as cache keys, for example to monitor rehashes */
+    public static @Nonnull FileMd5Cache getXsltMd5Cache() {
+        return xsltMd5Cache;
+    }
+
+    /** Serializes the XML, e.g. to debug the input of an XSLT. A DOM is serialized directly, without copying it */
+    @SneakyThrows({SaxonApiException.class, IOException.class})
+    protected void writePlainXml(@Nonnull DocumentGenerationDestination response, @Nonnull Source xml) {
         response.setContentType("text/plain; charset=UTF-8");
-        var transformer = TransformerFactory.newInstance().newTransformer();
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
-        transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-        var source = new DOMSource(xml);
-        var result = new StreamResult(response.getOutputStream());
-        transformer.transform(source, result);
-        response.getOutputStream().close();
+        try (var outputStream = response.getOutputStream()) {
+            var serializer = processor.newSerializer(outputStream);
+            serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
+            serializer.setOutputProperty(Serializer.Property.ENCODING, StandardCharsets.UTF_8.name());
+            serializer.setOutputProperty(Serializer.Property.INDENT, "yes");
+            var builder = processor.newDocumentBuilder();
+            var node = xml instanceof DOMSource d && d.getNode() != null ? builder.wrap(d.getNode()) : builder.build(xml);
+            processor.writeXdmValue(node, serializer);
+        }
     }
 
-    @SneakyThrows({TransformerException.class, IOException.class, SAXException.class})
+    /** @return a FOP handler (can convert XSL-FO into PDF), which accepts the XSL-FO as SAX events */
+    @SneakyThrows(FOPException.class)
+    protected @Nonnull DefaultHandler newXslFoToPdfHandler(@Nonnull OutputStream pdf, @CheckForNull URIResolver uriResolverOrNull) {
+        var fopFactory = fopFactoryCache.get(fopConfigOrNull, fopBaseDirOrNull, imagesBase, fopFontCacheFileOrNull, uriResolverOrNull);
+        var foUserAgent = fopFactory.newFOUserAgent();
+        var fop = fopFactory.newFop(MimeConstants.MIME_PDF, foUserAgent, pdf);
+        return fop.getDefaultHandler();
+    }
+
+    @SneakyThrows(SaxonApiException.class)
     protected void writePdfFromXslFo(@Nonnull OutputStream pdf, @Nonnull Document fo, @CheckForNull URIResolver uriResolverOrNull) {
         try (var ignored = new Timer("Create PDF from XSL-FO")) {
-            // Get a FOP instance (can convert XSL-FO into PDF)
-            FopFactoryBuilder builder;
-            if (fopConfigOrNull != null) {
-                FopConfParser parser;
-                if (uriResolverOrNull == null) parser = new FopConfParser(fopConfigOrNull);
-                else parser = new FopConfParser(fopConfigOrNull, new URIResolverAdapter(uriResolverOrNull));
-                builder = parser.getFopFactoryBuilder();
-            } else {
-                if (uriResolverOrNull == null) builder = new FopFactoryBuilder(URI.create("https://www.example.com/"));
-                else builder = new FopFactoryBuilder(URI.create("https://www.example.com/"), new URIResolverAdapter(uriResolverOrNull));
-            }
-            if (imagesBase != null) builder.setBaseURI(imagesBase.toURI());
-            var fopFactory = builder.build();
-            if (fopBaseDirOrNull != null) fopFactory.getFontManager().setResourceResolver(
-                ResourceResolverFactory.createDefaultInternalResourceResolver(fopBaseDirOrNull.toURI()));
-            var foUserAgent = fopFactory.newFOUserAgent();
-            var fop = fopFactory.newFop(MimeConstants.MIME_PDF, foUserAgent, pdf);
+            var fop = newXslFoToPdfHandler(pdf, uriResolverOrNull);
+
+            // The XSL-FO must be piped through to FOP as SAX events
+            processor.writeXdmValue(processor.newDocumentBuilder().build(new DOMSource(fo)), new SAXDestination(fop));
+        }
+    }
 
-            // Setup JAXP using identity transformer
-            var factory = TransformerFactory.newInstance();
-            var transformer = factory.newTransformer(); // identity transformer
-            
-            // Resulting SAX events (the generated FO) must be piped through to FOP
-            var res = new SAXResult(fop.getDefaultHandler());
+    /** @return a handler which sends the SAX events it receives to the serializer */
+    @SneakyThrows(SaxonApiException.class)
+    protected static @Nonnull ContentHandler getContentHandler(@Nonnull Serializer serializer) {
+        return serializer.getContentHandler();
+    }
 
-            // Start XSLT transformation and FOP processing
-            transformer.transform(new DOMSource(fo), res);
+    /** Transforms the XML, sending the result to the destination */
+    protected void applyXslt(@Nonnull XsltTransformer xslt, @Nonnull Source xml, @Nonnull Destination destination)
+    throws TransformerException {
+        try {
+            xslt.setSource(xml);
+            xslt.setDestination(destination);
+            xslt.transform();
+        }
+        catch (SaxonApiException e) {
+            if (e.getCause() instanceof TransformerException t) throw t;
+            throw new TransformerException(e);
         }
     }
 
     public void assertTemplateValid() throws DocumentTemplateInvalidException {
         transformer.assertValid();
     }
+
+    /** @return the font families named in the FOP configuration, e.g. "Arial", with their styles and weights */
+    @SneakyThrows({SAXException.class, IOException.class})
+    protected @Nonnull List<Element> getConfiguredFontTriplets() {
+        var result = new ArrayList<Element>();
+        if (fopConfigOrNull == null) return result;
+        var triplets = DomParser.newDocumentBuilder().parse(fopConfigOrNull).getElementsByTagName("font-triplet");
+        for (int i = 0; i < triplets.getLength(); i++) result.add((Element) triplets.item(i));
+        return result;
+    }
+
+    /** @return XSL-FO which uses each font of the FOP configuration, and the default font */
+    protected @Nonnull Document newWarmUpXslFo() {
+        var fo = "http://www.w3.org/1999/XSL/Format";
+        var result = DomParser.newDocumentBuilder().newDocument();
+        var root = (Element) result.appendChild(result.createElementNS(fo, "fo:root"));
+        var master = (Element) root.appendChild(result.createElementNS(fo, "fo:layout-master-set"))
+            .appendChild(result.createElementNS(fo, "fo:simple-page-master"));
+        master.setAttribute("master-name", "page");
+        master.appendChild(result.createElementNS(fo, "fo:region-body"));
+        var sequence = (Element) root.appendChild(result.createElementNS(fo, "fo:page-sequence"));
+        sequence.setAttribute("master-reference", "page");
+        var flow = (Element) sequence.appendChild(result.createElementNS(fo, "fo:flow"));
+        flow.setAttribute("flow-name", "xsl-region-body");
+
+        var fonts = new ArrayList<Element>(getConfiguredFontTriplets());
+        fonts.add(null);
+        for (var font : fonts) {
+            for (int i = 0; i < 20; i++) {
+                var block = (Element) flow.appendChild(result.createElementNS(fo, "fo:block"));
+                if (font != null) {
+                    block.setAttribute("font-family", font.getAttribute("name"));
+                    if (font.hasAttribute("style")) block.setAttribute("font-style", font.getAttribute("style"));
+                    if (font.hasAttribute("weight")) block.setAttribute("font-weight", font.getAttribute("weight"));
+                }
+                block.setTextContent("Warm-up " + i + ": The quick brown fox jumps over the lazy dog 0123456789 äöü €");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Prepares this generator, so that the first documents it generates are not slower than later ones,
+     * for example before a server receives requests.
+     * The XSLT is compiled. For PDF output, the FOP configuration is read, fonts are found (or read from the font cache file,
+     * see {@link #setFopFontCacheFile(File)}), and a document using each configured font is rendered several times,
+     * so that the font metrics are loaded and FOP's classes are loaded and compiled by the JIT.
+     * @param uriResolverOrNull the resolver which will be passed to {@link #transform}, as FOP factories are shared per resolver
+     * @return how long the warm-up took
+     */
+    public @Nonnull Duration warmUp(@CheckForNull URIResolver uriResolverOrNull) throws DocumentTemplateInvalidException {
+        var start = System.nanoTime();
+        try (var ignored = new Timer("Warm up '" + templateName + "'")) {
+            transformer.assertValid();
+            if (defn.outputConversion == OutputConversion.xslFoToPdf) {
+                var xslFo = newWarmUpXslFo();
+                for (int i = 0; i < warmUpPdfCount; i++) writePdfFromXslFo(OutputStream.nullOutputStream(), xslFo, uriResolverOrNull);
+            }
+        }
+        return Duration.ofNanos(System.nanoTime() - start);
+    }
     
     /**
+     * Transforms XML which is already in memory as a DOM.
+     * Prefer the other methods if the XML is available as a stream or file, as Saxon then does not need to copy the DOM.
      * @param response  this is closed by this method 
      * @param transform if false, then don't do transformation, but output XML instead (for debugging)
-     * @param uriResolverOrNull if not null, pass an object which can, for example, fetch or create images via programmatic logic
+     * @param uriResolverOrNull if not null, pass an object which can, for example, fetch or create images via programmatic logic.
+     *                          To use the {@link DocumentResultCache} with a new resolver object for each call,
+     *                          implement {@link DocumentResultCache.KeyedURIResolver}
      * @param language for example "de" to choose different XSLT params (placeholder values). Or null to just use the default.
      */
-    @SneakyThrows(IOException.class)
     public void transform(
         @Nonnull DocumentGenerationDestination response, @Nonnull Document xml,
         boolean transform, @CheckForNull URIResolver uriResolverOrNull,
         @CheckForNull String language
+    ) throws DocumentTemplateInvalidException, TransformerException {
+        transform(response, new DOMSource(xml), transform, uriResolverOrNull, language);
+    }
+
+    /** Transforms XML which is read from a stream; the stream is not closed. See {@link #transform(DocumentGenerationDestination, Source, boolean, URIResolver, String)} */
+    public void transform(
+        @Nonnull DocumentGenerationDestination response, @Nonnull InputStream xml,
+        boolean transform, @CheckForNull URIResolver uriResolverOrNull,
+        @CheckForNull String language
+    ) throws DocumentTemplateInvalidException, TransformerException {
+        transform(response, new StreamSource(xml), transform, uriResolverOrNull, language);
+    }
+
+    /** Transforms XML which is read from a reader; the reader is not closed. See {@link #transform(DocumentGenerationDestination, Source, boolean, URIResolver, String)} */
+    public void transform(
+        @Nonnull DocumentGenerationDestination response, @Nonnull Reader xml,
+        boolean transform, @CheckForNull URIResolver uriResolverOrNull,
+        @CheckForNull String language
+    ) throws DocumentTemplateInvalidException, TransformerException {
+        transform(response, new StreamSource(xml), transform, uriResolverOrNull, language);
+    }
+
+    /**
+     * Transforms XML which is read from a file.
+     * See {@link #transform(DocumentGenerationDestination, Source, boolean, URIResolver, String)}
+     */
+    @SneakyThrows(IOException.class)
+    public void transform(
+        @Nonnull DocumentGenerationDestination response, @Nonnull Path xml,
+        boolean transform, @CheckForNull URIResolver uriResolverOrNull,
+        @CheckForNull String language
+    ) throws DocumentTemplateInvalidException, TransformerException {
+        try (var inputStream = new BufferedInputStream(Files.newInputStream(xml))) {
+            var source = new StreamSource(inputStream, xml.toUri().toString());
+            transform(response, source, transform, uriResolverOrNull, language);
+        }
+    }
+
+    /**
+     * Transforms the XML on the executor set by {@link #setAsyncExecutor(Executor)}, and returns immediately.
+     * If the result is cancelled or times out (for example via {@link CompletableFuture#orTimeout}) the transformation is stopped,
+     * see {@link TransformationFuture}.
+     * The parameters are as for {@link #transform(DocumentGenerationDestination, Source, boolean, URIResolver, String)}.
+     */
+    public @Nonnull TransformationFuture transformAsync(
+        @Nonnull DocumentGenerationDestination response, @Nonnull Source xml,
+        boolean transform, @CheckForNull URIResolver uriResolverOrNull,
+        @CheckForNull String language
+    ) {
+        var result = new TransformationFuture();
+        asyncExecutor.execute(() -> {
+            if ( ! result.start()) return;
+            try {
+                transform(result.newStoppableDestination(response), xml, transform, uriResolverOrNull, language);
+                result.complete(null);
+            }
+            catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+            finally {
+                result.finish();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Transforms XML from any source. Saxon builds its tree directly from a stream,
+     * so this uses less memory than building a DOM first.
+     * @param xml       for example a {@link StreamSource}, {@link javax.xml.transform.sax.SAXSource} or {@link DOMSource}
+     * @param response  this is closed by this method 
+     * @param transform if false, then don't do transformation, but output XML instead (for debugging)
+     * @param uriResolverOrNull if not null, pass an object which can, for example, fetch or create images via programmatic logic.
+     *                          To use the {@link DocumentResultCache} with a new resolver object for each call,
+     *                          implement {@link DocumentResultCache.KeyedURIResolver}
+     * @param language for example "de" to choose different XSLT params (placeholder values). Or null to just use the default.
+     */
+    @SneakyThrows(IOException.class)
+    public void transform(
+        @Nonnull DocumentGenerationDestination response, @Nonnull Source xml,
+        boolean transform, @CheckForNull URIResolver uriResolverOrNull,
+        @CheckForNull String language
     ) throws DocumentTemplateInvalidException, TransformerException {
         if ( ! transform) {
             writePlainXml(response, xml);
             return;
         }
 
-        var xslt = transformer.newTransformer();
-        for (var placeholderValue : defn.xsltParameters.get(language).entrySet())
-            xslt.setParameter(placeholderValue.getKey(), placeholderValue.getValue());
-
-        switch (defn.outputConversion) {
-            case xmlToJson:
-                response.setContentType((defn.contentType == null ? "application/json" : defn.contentType) + "; charset=UTF-8");
-                var xmlOutput = new StringWriter();
-                try (var ignored = new Timer("XSLT Transformation")) { 
-                    xslt.transform(new DOMSource(xml), new StreamResult(xmlOutput)); 
-                }
-                var json = new JsonXmlConverter().convertXmlToJson(xmlOutput.toString());
-                try (var outputStream = response.getOutputStream()) {
-                    outputStream.write(json.getBytes(StandardCharsets.UTF_8));
+        var measurement = new TransformationMeasurement();
+        var success = false;
+        metrics.recordTransformationStarted(templateName, defn.outputConversion);
+        try {
+            var destination = measurement.newCountingDestination(response);
+            var resultCache = resultCacheOrNull;
+            var hashedInput = resultCache == null || defn.resultCacheDisabled || ! transformer.isDeterministic()
+                ? null : DocumentResultCache.hashInput(xml);
+            if (hashedInput == null) {
+                transformAndConvert(destination, xml, uriResolverOrNull, language, measurement);
+            } else {
+                var key = calculateResultCacheKey(resultCache, hashedInput, uriResolverOrNull, language);
+                var hit = resultCache.replay(key, destination);
+                metrics.recordCacheLookup("result", templateName, hit);
+                if ( ! hit) {
+                    var recording = resultCache.newRecordingDestination(destination);
+                    try {
+                        transformAndConvert(recording, hashedInput.source(), uriResolverOrNull, language, measurement);
+                        resultCache.put(key, recording);
+                    }
+                    finally {
+                        recording.discard();
+                    }
                 }
-                break;
+            }
+            success = true;
+        }
+        finally {
+            metrics.recordTransformationFinished(templateName, defn.outputConversion, measurement.getElapsed(),
+                measurement.getPostConversionTimeOrNull(), measurement.outputBytes.get(), success);
+        }
+    }
 
-            case xslFoToPdf:
-                response.setContentType(defn.contentType == null ? "application/pdf" : defn.contentType);
-                var xslFo = new DOMResult();
-                try (var ignored = new Timer("XSLT Transformation to XSL-FO")) {
-                    xslt.transform(new DOMSource(xml), xslFo); 
-                }
-                try (var outputStream = response.getOutputStream()) {
-                    writePdfFromXslFo(outputStream, (Document) xslFo.getNode(), uriResolverOrNull);
-                }
-                break;
+    /** @return a key for {@link DocumentResultCache}, which differs if anything which affects the document differs */
+    protected @Nonnull String calculateResultCacheKey(
+        @Nonnull DocumentResultCache resultCache, @Nonnull DocumentResultCache.HashedInput input, @CheckForNull URIResolver uriResolverOrNull, @CheckForNull String language
+    ) {
+        var result = new ArrayList<String>();
+        result.add(transformer.getCacheKey());
+        result.add(defn.outputConversion.name());
+        result.add(defn.contentType);
+        result.add(defn.inputDecimalSeparator.name());
+        result.add(Boolean.toString(defn.excelStreamRows));
+        result.add(fopConfigOrNull == null ? null : fopConfigOrNull.getAbsolutePath() + "@" + fopConfigOrNull.lastModified());
+        result.add(fopBaseDirOrNull == null ? null : fopBaseDirOrNull.getAbsolutePath());
+        result.add(imagesBase == null ? null : imagesBase.getAbsolutePath());
+        result.add(resultCache.getUriResolverKey(uriResolverOrNull));
+        result.add(Integer.toString(htmlBodyScriptsToIgnore.size()));
+        result.addAll(htmlBodyScriptsToIgnore);
+        for (var p : new TreeMap<>(defn.xsltParameters.get(language)).entrySet()) { result.add(p.getKey()); result.add(p.getValue()); }
+        result.add(input.sha256());
+        return DocumentResultCache.sha256(result);
+    }
 
-            case excelXmlToExcelBinary:
-                response.setContentType(defn.contentType == null ? "application/ms-excel" : defn.contentType);
-                try (var outputStream = response.getOutputStream()) {
-                    xslt.transform(new DOMSource(xml), new SAXResult(new ExcelGenerator(defn.inputDecimalSeparator, outputStream)));
-                }
-                break;
-
-            default:
-                response.setContentType((defn.contentType == null ? "text/plain" : defn.contentType) + "; charset=UTF-8");
-                try (var outputStream = response.getOutputStream()) {
-                    var result = new StreamResult(outputStream);
-                    xslt.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
-                    try (var ignored = new Timer("XSLT Transformation")) { xslt.transform(new DOMSource(xml), result); }
-                }
-                break;
+    protected void transformAndConvert(
+        @Nonnull DocumentGenerationDestination response, @Nonnull Source xml,
+        @CheckForNull URIResolver uriResolverOrNull, @CheckForNull String language,
+        @Nonnull TransformationMeasurement measurement
+    ) throws DocumentTemplateInvalidException, TransformerException, IOException {
+        try (var borrowed = transformer.borrowTransformer()) {
+            var xslt = borrowed.transformer;
+            defn.xsltParameters.getSaxonParameters(language).applyTo(xslt);
+
+            switch (defn.outputConversion) {
+                case xmlToJson:
+                    response.setContentType((defn.contentType == null ? "application/json" : defn.contentType) + "; charset=UTF-8");
+                    try (var outputStream = response.getOutputStream()) {
+                        try (var ignored = new Timer("XSLT Transformation")) { 
+                            applyXslt(xslt, xml, new SAXDestination(measurement.newEndOfXsltOutputFilter(new XmlToJsonContentHandler(outputStream))));
+                        }
+                    }
+                    break;
+
+                case xslFoToPdf:
+                    response.setContentType(defn.contentType == null ? "application/pdf" : defn.contentType);
+                    switch (xslFoProcessing) {
+                        case streaming:
+                            try (var outputStream = response.getOutputStream()) {
+                                var fop = newXslFoToPdfHandler(outputStream, uriResolverOrNull);
+                                try (var ignored = new Timer("XSLT Transformation to XSL-FO and create PDF")) {
+                                    applyXslt(xslt, xml, new SAXDestination(measurement.newEndOfXsltOutputFilter(fop)));
+                                }
+                            }
+                            break;
+
+                        case pipelined:
+                            try (var outputStream = response.getOutputStream()) {
+                                var fop = newXslFoToPdfHandler(outputStream, uriResolverOrNull);
+                                var pipeline = new PipelinedContentHandler(fop, pipelineExecutor, pipelineBatchSize, pipelineMaximumBatchCount);
+                                try (var ignored = new Timer("XSLT Transformation to XSL-FO, and create PDF on another thread")) {
+                                    try { applyXslt(xslt, xml, new SAXDestination(measurement.newEndOfXsltOutputFilter(pipeline))); }
+                                    catch (Throwable e) { pipeline.abort(); throw e; } // Also e.g. StackOverflowError, so the other thread does not wait forever
+                                    pipeline.awaitCompletion();
+                                }
+                            }
+                            break;
+
+                        case dom:
+                            var xslFo = DomParser.newDocumentBuilder().newDocument();
+                            try (var ignored = new Timer("XSLT Transformation to XSL-FO")) {
+                                applyXslt(xslt, xml, new DOMDestination(xslFo));
+                            }
+                            measurement.startPostConversion();
+                            try (var outputStream = response.getOutputStream()) {
+                                writePdfFromXslFo(outputStream, xslFo, uriResolverOrNull);
+                            }
+                            break;
+                    }
+                    break;
+
+                case excelXmlToExcelBinary:
+                    response.setContentType(defn.contentType == null ? "application/ms-excel" : defn.contentType);
+                    try (var outputStream = response.getOutputStream()) {
+                        var excel = new ExcelGenerator(defn.inputDecimalSeparator, outputStream);
+                        excel.setStreamRows(defn.excelStreamRows);
+                        applyXslt(xslt, xml, new SAXDestination(measurement.newEndOfXsltOutputFilter(excel)));
+                    }
+                    break;
+
+                case excelXmlToXlsx:
+                    response.setContentType(defn.contentType == null
+                        ? "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet" : defn.contentType);
+                    try (var outputStream = response.getOutputStream()) {
+                        var xlsx = new XlsxGenerator(defn.inputDecimalSeparator, outputStream);
+                        try { applyXslt(xslt, xml, new SAXDestination(measurement.newEndOfXsltOutputFilter(xlsx))); }
+                        catch (Throwable e) { xlsx.abort(); throw e; } // endDocument, which releases the rows, has not been called
+                    }
+                    break;
+
+                case htmlToHtmlBody:
+                    response.setContentType((defn.contentType == null ? "text/html" : defn.contentType) + "; charset=UTF-8");
+                    try (var outputStream = response.getOutputStream()) {
+                        var result = processor.newSerializer(outputStream);
+                        result.setOutputProperty(Serializer.Property.METHOD, "html");
+                        result.setOutputProperty(Serializer.Property.ENCODING, StandardCharsets.UTF_8.name());
+                        result.setOutputProperty(Serializer.Property.INDENT, "no");
+                        var body = new HtmlBodyExtractingFilter(getContentHandler(result), htmlBodyScriptsToIgnore);
+                        try (var ignored = new Timer("XSLT Transformation and extract HTML body")) {
+                            applyXslt(xslt, xml, new SAXDestination(measurement.newEndOfXsltOutputFilter(body)));
+                        }
+                    }
+                    break;
+
+                default:
+                    response.setContentType((defn.contentType == null ? "text/plain" : defn.contentType) + "; charset=UTF-8");
+                    try (var outputStream = response.getOutputStream()) {
+                        var result = processor.newSerializer(outputStream);
+                        result.setOutputProperty(Serializer.Property.ENCODING, StandardCharsets.UTF_8.name());
+                        try (var ignored = new Timer("XSLT Transformation")) { applyXslt(xslt, xml, result); }
+                    }
+                    break;
+            }
         }
     }
 }
@@ -9,14 +9,19 @@ import java.io.Serializable;
 
 public class DocumentOutputDefinition implements Serializable {
 
-    public enum OutputConversion { none, xmlToJson, xslFoToPdf, excelXmlToExcelBinary }
+    public enum OutputConversion { none, xmlToJson, xslFoToPdf, excelXmlToExcelBinary, excelXmlToXlsx, htmlToHtmlBody }
     
     public @CheckForNull File xsltFileOrNull;
     public @Nonnull XsltParameters xsltParameters;
     public @Nonnull OutputConversion outputConversion = OutputConversion.none;
     public @Nonnull InputDecimalSeparator inputDecimalSeparator = InputDecimalSeparator.dot;
+    /** See {@link ExcelGenerator#setStreamRows(boolean)} */
+    public boolean excelStreamRows = false;
     public @CheckForNull String contentType;
 
+    /** If true, documents are always generated, even if a {@link DocumentResultCache} is set */
+    public boolean resultCacheDisabled = false;
+
     public DocumentOutputDefinition(@Nonnull XsltParameters xsltParameters) {
         this.xsltParameters = xsltParameters;
     }
@@ -0,0 +1,332 @@
+package com.offerready.xslt;
+
+import com.databasesandlife.util.Timer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.offerready.xslt.destination.DocumentGenerationDestination;
+import lombok.SneakyThrows;
+import net.sf.saxon.s9api.SaxonApiException;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.transform.Source;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Holds generated documents, so that a document generated again with the same XSLT, input, language and parameters
+ * is written from the cache, rather than being transformed again.
+ * Set it with {@link DocumentGenerator#setResultCache(DocumentResultCache)}; one object may be shared by many generators.
+ *    <p>
+ * Documents are held in memory, up to a total number of bytes, and the least-recently used ones are discarded.
+ * Optionally, with {@link #setDiskTier(File, long, long)}, large documents such as PDFs are held as files in a directory
+ * instead, also up to a total number of bytes.
+ *    <p>
+ * A document is only cached if the output of its XSLT depends only on its input and parameters,
+ * see {@link WeaklyCachedXsltTransformer#isDeterministic()}, and if it is not disabled with
+ * {@link DocumentOutputDefinition#resultCacheDisabled}.
+ * Resources fetched during the transformation, for example images via a {@link URIResolver},
+ * are assumed not to change. If they do change, call {@link #invalidateAll()}.
+ * Documents generated with different resolver objects are cached separately, even if the objects are of the same class,
+ * unless the resolvers implement {@link KeyedURIResolver} and return equal keys.
+ *    <p>
+ * The input is read into memory to calculate its hash, so that it can be read again for the transformation,
+ * unless it is a {@link DOMSource} which is already in memory.
+ * Inputs which cannot be read twice, for example a {@link javax.xml.transform.sax.SAXSource}, are not cached.
+ */
+public class DocumentResultCache {
+
+    /**
+     * A resolver which states which resources it returns, so that documents generated with different resolver objects,
+     * for example one created for each request, are written from the cache if their keys are equal.
+     */
+    public interface KeyedURIResolver extends URIResolver {
+        /** @return a value which differs if the resources returned by the resolver might differ, for example "tenant 12" */
+        @Nonnull String getResultCacheKey();
+    }
+
+    /** A generated document, whose body is either in memory or in a file */
+    protected record CachedDocument(
+        @CheckForNull String contentTypeOrNull, boolean download, @CheckForNull String filenameOrNull,
+        @CheckForNull byte[] bodyOrNull, @CheckForNull File fileOrNull, long size
+    ) { }
+
+    /** The input of a transformation, and a source to read it again, after it has been read to calculate its hash */
+    protected record HashedInput(@Nonnull Source source, @Nonnull String sha256) { }
+
+    /** The disk tier, see {@link #setDiskTier(File, long, long)} */
+    protected record DiskTier(
+        @Nonnull File directory, long minimumDocumentBytes, long maximumDocumentBytes, @Nonnull Cache<String, CachedDocument> documents
+    ) { }
+
+    protected final @Nonnull Cache<String, CachedDocument> memory;
+    protected volatile @CheckForNull DiskTier diskTierOrNull = null;
+    protected volatile long maximumDocumentBytes;
+    protected final @Nonnull AtomicLong hitCount = new AtomicLong(), missCount = new AtomicLong();
+    protected final @Nonnull Cache<URIResolver, Long> uriResolverIds = CacheBuilder.newBuilder().weakKeys().build();
+    protected final @Nonnull AtomicLong nextUriResolverId = new AtomicLong();
+
+    /**
+     * @param maximumMemoryBytes the total size of the documents held in memory,
+     *                           before the least-recently used ones are discarded
+     */
+    public DocumentResultCache(long maximumMemoryBytes) {
+        memory = CacheBuilder.newBuilder()
+            .maximumWeight(maximumMemoryBytes)
+            .weigher((String key, CachedDocument d) -> d.bodyOrNull == null ? 0 : d.bodyOrNull.length)
+            .build();
+        maximumDocumentBytes = Math.min(Integer.MAX_VALUE, maximumMemoryBytes / 10);
+    }
+
+    /** Documents larger than this are not held in memory, by default a tenth of the memory */
+    public void setMaximumDocumentBytes(long maximumDocumentBytes) {
+        this.maximumDocumentBytes = Math.min(Integer.MAX_VALUE, maximumDocumentBytes);
+    }
+
+    /**
+     * Documents of at least "minimumDocumentBytes" are held as files in the directory, rather than in memory.
+     * The directory should be used by no other object; files left in it, for example from before a restart, are deleted.
+     * Documents larger than a tenth of "maximumDiskBytes" are not cached.
+     * @param maximumDiskBytes the total size of the files, before the least-recently used ones are deleted
+     */
+    @SneakyThrows(IOException.class)
+    public void setDiskTier(@Nonnull File directory, long maximumDiskBytes, long minimumDocumentBytes) {
+        Files.createDirectories(directory.toPath());
+        var existing = directory.listFiles((dir, name) -> name.endsWith(".document") || name.endsWith(".tmp"));
+        if (existing != null) for (var f : existing) Files.deleteIfExists(f.toPath());
+
+        RemovalListener<String, CachedDocument> deleteFile = n -> {
+            try { if (n.getValue() != null && n.getValue().fileOrNull != null) Files.deleteIfExists(n.getValue().fileOrNull.toPath()); }
+            catch (IOException e) { LoggerFactory.getLogger(getClass()).warn("Cannot delete cached document", e); }
+        };
+        var documents = CacheBuilder.newBuilder()
+            .maximumWeight(maximumDiskBytes / 1024)
+            .weigher((String key, CachedDocument d) -> (int) Math.min(Integer.MAX_VALUE, d.size / 1024))
+            .removalListener(deleteFile)
+            .build();
+        diskTierOrNull = new DiskTier(directory, minimumDocumentBytes, maximumDiskBytes / 10, documents);
+    }
+
+    protected static @Nonnull MessageDigest newSha256() {
+        try { return MessageDigest.getInstance("SHA-256"); }
+        catch (NoSuchAlgorithmException e) { throw new RuntimeException(e); }
+    }
+
+    /** @return the hex SHA-256 of the strings, each of which may be null; each is prefixed by its length so that e.g. "ab","c" differs from "a","bc" */
+    protected static @Nonnull String sha256(@Nonnull List<String> strings) {
+        var digest = newSha256();
+        for (var s : strings) digest.update((s == null ? "-1:" : s.length() + ":" + s).getBytes(UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return a part of the cache key, which differs for each resolver object, unless it is a {@link KeyedURIResolver};
+     *         or null if there is no resolver
+     */
+    @SneakyThrows(ExecutionException.class)
+    protected @CheckForNull String getUriResolverKey(@CheckForNull URIResolver uriResolverOrNull) {
+        if (uriResolverOrNull == null) return null;
+        if (uriResolverOrNull instanceof KeyedURIResolver r) return "key:" + r.getResultCacheKey();
+        return "object:" + uriResolverIds.get(uriResolverOrNull, nextUriResolverId::incrementAndGet); // Weak keys are compared by identity
+    }
+
+    /**
+     * Reads the input to calculate its hash.
+     * @return null if the input cannot be read twice, so the document should not be cached
+     */
+    @SneakyThrows({IOException.class, SaxonApiException.class})
+    protected static @CheckForNull HashedInput hashInput(@Nonnull Source source) {
+        try (var ignored = new Timer("Calculate hash of XSLT input")) {
+            if (source instanceof StreamSource s && s.getInputStream() != null) {
+                var bytes = s.getInputStream().readAllBytes();
+                var hash = HexFormat.of().formatHex(newSha256().digest(bytes));
+                return new HashedInput(new StreamSource(new ByteArrayInputStream(bytes), s.getSystemId()), hash);
+            }
+            if (source instanceof StreamSource s && s.getReader() != null) {
+                var writer = new StringBuilder();
+                var buffer = new char[8192];
+                for (int count; (count = s.getReader().read(buffer)) >= 0; ) writer.append(buffer, 0, count);
+                var text = writer.toString();
+                return new HashedInput(new StreamSource(new StringReader(text), s.getSystemId()), sha256(List.of(text)));
+            }
+            if (source instanceof DOMSource d && d.getNode() != null) {
+                var digest = newSha256();
+                var processor = WeaklyCachedXsltTransformer.getSaxonProcessor();
+                try (var out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+                    processor.writeXdmValue(processor.newDocumentBuilder().wrap(d.getNode()), processor.newSerializer(out));
+                }
+                return new HashedInput(source, HexFormat.of().formatHex(digest.digest()));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes the document to the destination, if it is in the cache.
+     * @return false if the document is not in the cache, in which case nothing has been written to the destination
+     */
+    @SneakyThrows(IOException.class)
+    public boolean replay(@Nonnull String key, @Nonnull DocumentGenerationDestination destination) {
+        var diskTier = diskTierOrNull;
+        var document = memory.getIfPresent(key);
+        if (document == null && diskTier != null) document = diskTier.documents.getIfPresent(key);
+
+        InputStream body = null;
+        if (document != null) {
+            if (document.bodyOrNull != null) body = new ByteArrayInputStream(document.bodyOrNull);
+            else if (document.fileOrNull != null) {
+                try { body = new FileInputStream(document.fileOrNull); }
+                catch (IOException e) { document = null; } // e.g. deleted by another process
+            }
+        }
+        if (body == null) {
+            missCount.incrementAndGet();
+            return false;
+        }
+
+        hitCount.incrementAndGet();
+        try (var ignored = new Timer("Write cached document"); var in = body) {
+            if (document.contentTypeOrNull != null) destination.setContentType(document.contentTypeOrNull);
+            if (document.download) destination.setContentDispositionToDownload(document.filenameOrNull);
+            try (var out = destination.getOutputStream()) { in.transferTo(out); }
+        }
+        return true;
+    }
+
+    /**
+     * Passes a document on to another destination, while recording it, so that it can be added to the cache
+     * with {@link #put(String, RecordingDestination)}.
+     * If the document is too large to be cached, recording stops, but the document is still passed on.
+     */
+    public class RecordingDestination implements DocumentGenerationDestination {
+        protected final @Nonnull DocumentGenerationDestination destination;
+        protected @CheckForNull String contentTypeOrNull = null, filenameOrNull = null;
+        protected boolean download = false, outputStarted = false, overflowed = false;
+        protected final @Nonnull ByteArrayOutputStream bodyInMemory = new ByteArrayOutputStream();
+        protected @CheckForNull File fileOrNull = null;
+        protected @CheckForNull OutputStream fileOutputOrNull = null;
+        protected long size = 0;
+
+        protected RecordingDestination(@Nonnull DocumentGenerationDestination destination) {
+            this.destination = destination;
+        }
+
+        @Override public void setContentType(@Nonnull String contentType) {
+            contentTypeOrNull = contentType;
+            destination.setContentType(contentType);
+        }
+
+        @Override public void setContentDispositionToDownload(@CheckForNull String filename) {
+            download = true;
+            filenameOrNull = filename;
+            destination.setContentDispositionToDownload(filename);
+        }
+
+        protected void record(@Nonnull byte[] b, int off, int len) throws IOException {
+            if (overflowed) return;
+            size += len;
+            var diskTier = diskTierOrNull;
+            if (fileOutputOrNull == null && diskTier != null && size >= diskTier.minimumDocumentBytes) {
+                fileOrNull = File.createTempFile("recording-", ".tmp", diskTier.directory);
+                fileOutputOrNull = new FileOutputStream(fileOrNull);
+                bodyInMemory.writeTo(fileOutputOrNull);
+                bodyInMemory.reset();
+            }
+            var maximumBytes = fileOutputOrNull != null && diskTier != null ? diskTier.maximumDocumentBytes : maximumDocumentBytes;
+            if (size > maximumBytes) { discard(); overflowed = true; return; }
+            if (fileOutputOrNull != null) fileOutputOrNull.write(b, off, len);
+            else bodyInMemory.write(b, off, len);
+        }
+
+        @Override public @Nonnull OutputStream getOutputStream() {
+            outputStarted = true;
+            return new OutputStream() {
+                protected final @Nonnull OutputStream out = destination.getOutputStream();
+                @Override public void write(int b) throws IOException { write(new byte[] { (byte) b }, 0, 1); }
+                @Override public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    record(b, off, len);
+                }
+                @Override public void flush() throws IOException { out.flush(); }
+                @Override public void close() throws IOException {
+                    try { out.close(); }
+                    finally { if (fileOutputOrNull != null) fileOutputOrNull.close(); }
+                }
+            };
+        }
+
+        /** Deletes anything recorded, for example if the transformation failed */
+        @SneakyThrows(IOException.class)
+        public void discard() {
+            bodyInMemory.reset();
+            if (fileOutputOrNull != null) fileOutputOrNull.close();
+            if (fileOrNull != null) Files.deleteIfExists(fileOrNull.toPath());
+            fileOrNull = null;
+            fileOutputOrNull = null;
+        }
+    }
+
+    public @Nonnull RecordingDestination newRecordingDestination(@Nonnull DocumentGenerationDestination destination) {
+        return new RecordingDestination(destination);
+    }
+
+    /** Adds the document, which has been completely written to the recording destination, to the cache */
+    @SneakyThrows(IOException.class)
+    public void put(@Nonnull String key, @Nonnull RecordingDestination recording) {
+        if ( ! recording.outputStarted || recording.overflowed) { recording.discard(); return; }
+
+        var diskTier = diskTierOrNull;
+        if (recording.fileOrNull != null && diskTier != null) {
+            recording.fileOutputOrNull.close();
+            var file = new File(diskTier.directory, key + ".document");
+            Files.move(recording.fileOrNull.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            recording.fileOrNull = null;
+            diskTier.documents.put(key, new CachedDocument(recording.contentTypeOrNull, recording.download, recording.filenameOrNull,
+                null, file, recording.size));
+        }
+        else if (recording.fileOrNull == null) {
+            memory.put(key, new CachedDocument(recording.contentTypeOrNull, recording.download, recording.filenameOrNull,
+                recording.bodyInMemory.toByteArray(), null, recording.size));
+        }
+        else recording.discard(); // The disk tier has been replaced during the recording
+    }
+
+    public long getHitCount() { return hitCount.get(); }
+    public long getMissCount() { return missCount.get(); }
+
+    /** @return the number of documents held in memory and on disk */
+    public long getSize() {
+        var diskTier = diskTierOrNull;
+        return memory.size() + (diskTier == null ? 0 : diskTier.documents.size());
+    }
+
+    /** Discards all documents, for example if images or other resources used by the XSLTs have changed */
+    public void invalidateAll() {
+        memory.invalidateAll();
+        var diskTier = diskTierOrNull;
+        if (diskTier != null) diskTier.documents.invalidateAll();
+    }
+}
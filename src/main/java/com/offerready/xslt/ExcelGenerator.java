@@ -137,13 +137,18 @@ public class ExcelGenerator extends DefaultHandler {
     
     // Configuration
     protected @Nonnull InputDecimalSeparator inputDecimalSeparator;
+    protected boolean streamRows = false;
     
-    // Connection to Excel
-    protected @Nonnull WritableWorkbook workbook;
-    protected @Nonnull WritableSheet excelSheet;
+    // Connection to Excel, null if a subclass writes another format
+    protected @CheckForNull WritableWorkbook workbook;
+    protected @CheckForNull WritableSheet excelSheet;
 
     // Intermediate store of values
     protected int nextRowInExcel = 0;
+    // If we generate a new WritableCellFormat for each cell, at some point we get the error:
+    //    Warning:  Maximum number of format records exceeded.  Using default format.
+    // Therefore, cache them
+    protected @Nonnull HashMap<CellAndNumberFormat, WritableCellFormat> formats = new HashMap<>();
     protected @Nonnull List<Integer> maxCharsSeenInColumn = new ArrayList<>();
     protected List<List<CellFromHtml>> currentHeadMatrix=null, currentFootMatrix=null, currentBodyMatrix=null, currentMatrix=null;
     protected List<CellFromHtml> currentRow=null;
@@ -157,11 +162,27 @@ public class ExcelGenerator extends DefaultHandler {
     /** @param xls is closed after transformation */
     @SneakyThrows(IOException.class)
     public ExcelGenerator(@Nonnull InputDecimalSeparator inputDecimalSeparator, @Nonnull OutputStream xls) {
-        this.inputDecimalSeparator = inputDecimalSeparator;
+        this(inputDecimalSeparator);
 
         workbook = Workbook.createWorkbook(xls);
         excelSheet = workbook.createSheet("Report", 0);
     }
+
+    /** For subclasses which write another format, by overriding {@link #writeRowToExcel(List)} and {@link #endDocument()} */
+    protected ExcelGenerator(@Nonnull InputDecimalSeparator inputDecimalSeparator) {
+        this.inputDecimalSeparator = inputDecimalSeparator;
+    }
+
+    /**
+     * If true, each row of the <code>&lt;thead&gt;</code> and body is written to Excel as soon as it ends,
+     * rather than the whole table being held until <code>&lt;/table&gt;</code>.
+     * Only <code>&lt;tfoot&gt;</code> rows are held, as they appear at the bottom.
+     * Rows then appear in the order they appear in the HTML, so a <code>&lt;thead&gt;</code> must appear before the body.
+     * This avoids holding the table as {@link CellFromHtml} objects, but jxl itself holds every cell until the workbook is written.
+     */
+    public void setStreamRows(boolean streamRows) {
+        this.streamRows = streamRows;
+    }
     
     /** @return String or Double */
     protected @Nonnull Object parseString(@Nonnull String str) {
@@ -181,41 +202,42 @@ public class ExcelGenerator extends DefaultHandler {
     }
 
     @SneakyThrows(WriteException.class)
-    protected void writeMatrixToExcel(@Nonnull List<List<CellFromHtml>> matrix) {
-        // If we generate a new WritableCellFormat for each cell, at some point we get the error:
-        //    Warning:  Maximum number of format records exceeded.  Using default format.
-        // Therefore, cache them
-        var formats = new HashMap<CellAndNumberFormat, WritableCellFormat>();
-
-        for (var row : matrix) {
-            int colIdx = 0;
-            for (var cell : row) {
-                var cellValue = cell.forceText ? cell.string.toString() : parseString(cell.string.toString());
-                var columnWidthChars = 0;
-                CellValue excelCell;
-                if (cellValue instanceof Double d) {
-                    var decimalPlaces = inputDecimalSeparator.determineDecimalPlaces(cell.string.toString());
-                    var cellAndNumberFormat = new CellAndNumberFormat(cell.format, getNumberFormat(decimalPlaces));
-                    var format = formats.computeIfAbsent(cellAndNumberFormat, CellAndNumberFormat::newFormat);
-                    excelCell = new Number(colIdx, nextRowInExcel, d, format);
-                    columnWidthChars = String.format("%."+decimalPlaces+"f", d).length();
-                } else if (cellValue instanceof String s) {
-                    var cellAndNumberFormat = new CellAndNumberFormat(cell.format, null);
-                    var format = formats.computeIfAbsent(cellAndNumberFormat, CellAndNumberFormat::newFormat);
-                    excelCell = new Label(colIdx, nextRowInExcel, s, format);
-                    columnWidthChars = s.length();
-                } else {
-                    throw new RuntimeException("Unreachable: " + cellValue.getClass());
-                }
+    protected void writeRowToExcel(@Nonnull List<CellFromHtml> row) {
+        int colIdx = 0;
+        for (var cell : row) {
+            var cellValue = cell.forceText ? cell.string.toString() : parseString(cell.string.toString());
+            var columnWidthChars = 0;
+            CellValue excelCell;
+            if (cellValue instanceof Double d) {
+                var decimalPlaces = inputDecimalSeparator.determineDecimalPlaces(cell.string.toString());
+                var cellAndNumberFormat = new CellAndNumberFormat(cell.format, getNumberFormat(decimalPlaces));
+                var format = formats.computeIfAbsent(cellAndNumberFormat, CellAndNumberFormat::newFormat);
+                excelCell = new Number(colIdx, nextRowInExcel, d, format);
+                columnWidthChars = String.format("%."+decimalPlaces+"f", d).length();
+            } else if (cellValue instanceof String s) {
+                var cellAndNumberFormat = new CellAndNumberFormat(cell.format, null);
+                var format = formats.computeIfAbsent(cellAndNumberFormat, CellAndNumberFormat::newFormat);
+                excelCell = new Label(colIdx, nextRowInExcel, s, format);
+                columnWidthChars = s.length();
+            } else {
+                throw new RuntimeException("Unreachable: " + cellValue.getClass());
+            }
 
-                while (maxCharsSeenInColumn.size() <= colIdx) maxCharsSeenInColumn.add(0);
-                if (columnWidthChars > maxCharsSeenInColumn.get(colIdx)) maxCharsSeenInColumn.set(colIdx, columnWidthChars);
+            recordColumnWidth(colIdx, columnWidthChars);
 
-                excelSheet.addCell(excelCell);
-                excelSheet.mergeCells(colIdx, nextRowInExcel, (colIdx += cell.colspan) - 1, nextRowInExcel);
-            }
-            nextRowInExcel++;
+            excelSheet.addCell(excelCell);
+            excelSheet.mergeCells(colIdx, nextRowInExcel, (colIdx += cell.colspan) - 1, nextRowInExcel);
         }
+        nextRowInExcel++;
+    }
+
+    protected void recordColumnWidth(int colIdx, int columnWidthChars) {
+        while (maxCharsSeenInColumn.size() <= colIdx) maxCharsSeenInColumn.add(0);
+        if (columnWidthChars > maxCharsSeenInColumn.get(colIdx)) maxCharsSeenInColumn.set(colIdx, columnWidthChars);
+    }
+
+    protected void writeMatrixToExcel(@Nonnull List<List<CellFromHtml>> matrix) {
+        for (var row : matrix) writeRowToExcel(row);
     }
     
     @Override public void startElement(String uri, String localName, String qName, Attributes attributes) {
@@ -240,7 +262,7 @@ public class ExcelGenerator extends DefaultHandler {
                 currentMatrix = currentFootMatrix;
                 break;
             case "tr":
-                currentMatrix.add(currentRow = new ArrayList<>());
+                currentRow = new ArrayList<>();
                 break;
             case "td":
             case "th":
@@ -288,7 +310,10 @@ public class ExcelGenerator extends DefaultHandler {
             case "tr":
                 boolean isEmpty = true;
                 for (CellFromHtml cell : currentRow) if (cell.string.length() > 0) isEmpty = false;
-                if (isEmpty) currentMatrix.remove(currentMatrix.size()-1);
+                if ( ! isEmpty) {
+                    if (streamRows && currentMatrix != currentFootMatrix) writeRowToExcel(currentRow);
+                    else currentMatrix.add(currentRow);
+                }
                 currentRow = null;
                 break;
             case "td":
@@ -0,0 +1,83 @@
+package com.offerready.xslt;
+
+import com.databasesandlife.util.MD5Hex;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.SneakyThrows;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the MD5 of files, so that a file is only read and hashed again if it has changed.
+ *    <p>
+ * A file is considered unchanged if its canonical path, size, last-modified time and file key
+ * (the inode on Unix, so that a file replaced by a rename is noticed) are unchanged.
+ * As file systems store the last-modified time with limited granularity, a file which was modified shortly before
+ * it was hashed might be modified again without its last-modified time changing;
+ * the MD5 of such a file is not trusted, and it is hashed again on the next request.
+ */
+public class FileMd5Cache {
+
+    protected static final long lastModifiedGranularityMillis = 2_000;
+
+    protected record FileStamp(long size, long lastModifiedMillis, @CheckForNull Object fileKeyOrNull) {
+        public boolean isSameFile(@Nonnull FileStamp other) {
+            return size == other.size && lastModifiedMillis == other.lastModifiedMillis
+                && Objects.equals(fileKeyOrNull, other.fileKeyOrNull);
+        }
+    }
+
+    protected record HashedFile(@Nonnull FileStamp stamp, long hashedAtMillis, @Nonnull String md5) {
+        public boolean isValidFor(@Nonnull FileStamp current) {
+            return stamp.isSameFile(current) && stamp.lastModifiedMillis < hashedAtMillis - lastModifiedGranularityMillis;
+        }
+    }
+
+    protected final @Nonnull Cache<String, HashedFile> md5ForCanonicalPath;
+    protected final @Nonnull AtomicLong lookupCount = new AtomicLong(), rehashCount = new AtomicLong();
+
+    /** @param maximumSize the number of files whose MD5 is held, before the least-recently used ones are discarded */
+    public FileMd5Cache(int maximumSize) {
+        md5ForCanonicalPath = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    protected static @Nonnull FileStamp readStamp(@Nonnull File file) throws IOException {
+        var attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return new FileStamp(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+    }
+
+    /** @return the MD5 of the file's contents, as hex */
+    @SneakyThrows(IOException.class)
+    public @Nonnull String md5(@Nonnull File file) {
+        lookupCount.incrementAndGet();
+
+        var canonicalPath = file.getCanonicalPath();
+        var stamp = readStamp(file);
+
+        var existing = md5ForCanonicalPath.getIfPresent(canonicalPath);
+        if (existing != null && existing.isValidFor(stamp)) return existing.md5;
+
+        // Two threads might hash the same file concurrently; that is harmless, the last one wins
+        rehashCount.incrementAndGet();
+        var hashedAtMillis = System.currentTimeMillis();
+        var md5 = MD5Hex.md5(file);
+        var stampAfterHashing = readStamp(file);
+        if (stampAfterHashing.isSameFile(stamp))
+            md5ForCanonicalPath.put(canonicalPath, new HashedFile(stamp, hashedAtMillis, md5));
+        return md5;
+    }
+
+    public long getLookupCount() { return lookupCount.get(); }
+
+    /** @return the number of times a file has been read and hashed, as it was not in the cache or had changed */
+    public long getRehashCount() { return rehashCount.get(); }
+
+    public void invalidateAll() { md5ForCanonicalPath.invalidateAll(); }
+}
@@ -0,0 +1,156 @@
+package com.offerready.xslt;
+
+import com.databasesandlife.util.Timer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.SneakyThrows;
+import org.apache.fop.apps.FopConfParser;
+import org.apache.fop.apps.FopFactory;
+import org.apache.fop.apps.FopFactoryBuilder;
+import org.apache.fop.apps.io.ResourceResolverFactory;
+import org.apache.xmlgraphics.io.ResourceResolver;
+import org.apache.xmlgraphics.io.URIResolverAdapter;
+import org.xml.sax.SAXException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.transform.URIResolver;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds {@link FopFactory} objects so that they can be reused across PDF renders.
+ *    <p>
+ * Creating a {@link FopFactory} involves parsing the FOP configuration file and discovering fonts,
+ * which is much more expensive than rendering a typical document. A {@link FopFactory} is thread-safe,
+ * so one object may be used by any number of concurrent renders.
+ *    <p>
+ * Factories are keyed by the FOP configuration file, the FOP base directory, the images base directory, the font cache file and
+ * the identity of the {@link URIResolver}. Callers which supply a {@link URIResolver} should therefore reuse the same
+ * object across requests, otherwise each request creates a new factory (visible as a miss in {@link #getMissCount()}).
+ * If the FOP configuration file is modified, its factory is rebuilt on next use.
+ *    <p>
+ * FOP stores the metrics of the fonts it finds in the configured font directories in a font cache file,
+ * by default in the user's home directory. If a font cache file is specified, for example on a persistent volume,
+ * fonts are not scanned again after a restart, unless they change.
+ *    <p>
+ * If a {@link FopImageCache} is supplied, all factories read images through it.
+ * FOP also holds the dimensions and some decoded images in each factory; these are cleared if an image file changes.
+ */
+public class FopFactoryCache {
+
+    protected record Key(
+        @CheckForNull File fopConfigOrNull, @CheckForNull File fopBaseDirOrNull, @CheckForNull File imagesBaseOrNull,
+        @CheckForNull File fontCacheFileOrNull, @CheckForNull URIResolver uriResolverOrNull
+    ) {
+        // URIResolver is compared by identity, as resolvers generally don't implement equals
+        @Override public boolean equals(Object o) {
+            return o instanceof Key k
+                && Objects.equals(fopConfigOrNull, k.fopConfigOrNull)
+                && Objects.equals(fopBaseDirOrNull, k.fopBaseDirOrNull)
+                && Objects.equals(imagesBaseOrNull, k.imagesBaseOrNull)
+                && Objects.equals(fontCacheFileOrNull, k.fontCacheFileOrNull)
+                && uriResolverOrNull == k.uriResolverOrNull;
+        }
+        @Override public int hashCode() {
+            return Objects.hash(fopConfigOrNull, fopBaseDirOrNull, imagesBaseOrNull, fontCacheFileOrNull,
+                System.identityHashCode(uriResolverOrNull));
+        }
+    }
+
+    /** @param imageCacheGeneration the {@link FopImageCache#getGeneration()} when FOP's own image cache was last valid */
+    protected record CachedFopFactory(@Nonnull FopFactory fopFactory, long fopConfigLastModified, @Nonnull AtomicLong imageCacheGeneration) { }
+
+    protected final @Nonnull Cache<Key, CachedFopFactory> factories;
+    protected final @CheckForNull FopImageCache imageCacheOrNull;
+    protected final @Nonnull AtomicLong lookupCount = new AtomicLong(), missCount = new AtomicLong();
+
+    /**
+     * @param maximumSize the number of factories held, before the least-recently used ones are discarded
+     * @param imageCacheOrNull if not null, images are read through this cache
+     */
+    public FopFactoryCache(int maximumSize, @CheckForNull FopImageCache imageCacheOrNull) {
+        factories = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+        this.imageCacheOrNull = imageCacheOrNull;
+    }
+
+    public FopFactoryCache(int maximumSize) {
+        this(maximumSize, null);
+    }
+
+    protected static long getLastModified(@CheckForNull File fopConfigOrNull) {
+        return fopConfigOrNull == null ? 0 : fopConfigOrNull.lastModified();
+    }
+
+    @SneakyThrows({SAXException.class, IOException.class})
+    protected @Nonnull CachedFopFactory newFopFactory(@Nonnull Key key, long fopConfigLastModified) {
+        try (var ignored = new Timer("Create FopFactory")) {
+            ResourceResolver resolver;
+            if (imageCacheOrNull != null) resolver = imageCacheOrNull.newResourceResolver(key.uriResolverOrNull);
+            else if (key.uriResolverOrNull != null) resolver = new URIResolverAdapter(key.uriResolverOrNull);
+            else resolver = ResourceResolverFactory.createDefaultResourceResolver();
+
+            FopFactoryBuilder builder;
+            if (key.fopConfigOrNull != null) builder = new FopConfParser(key.fopConfigOrNull, resolver).getFopFactoryBuilder();
+            else builder = new FopFactoryBuilder(URI.create("https://www.example.com/"), resolver);
+            if (key.imagesBaseOrNull != null) builder.setBaseURI(key.imagesBaseOrNull.toURI());
+            var fopFactory = builder.build();
+            if (key.fopBaseDirOrNull != null) fopFactory.getFontManager().setResourceResolver(
+                ResourceResolverFactory.createDefaultInternalResourceResolver(key.fopBaseDirOrNull.toURI()));
+            if (key.fontCacheFileOrNull != null)
+                fopFactory.getFontManager().setCacheFile(key.fontCacheFileOrNull.getAbsoluteFile().toURI());
+            var imageCacheGeneration = imageCacheOrNull == null ? 0 : imageCacheOrNull.getGeneration();
+            return new CachedFopFactory(fopFactory, fopConfigLastModified, new AtomicLong(imageCacheGeneration));
+        }
+    }
+
+    /** @return a factory which may be shared with other threads, using FOP's default font cache file */
+    public @Nonnull FopFactory get(
+        @CheckForNull File fopConfigOrNull, @CheckForNull File fopBaseDirOrNull, @CheckForNull File imagesBaseOrNull,
+        @CheckForNull URIResolver uriResolverOrNull
+    ) {
+        return get(fopConfigOrNull, fopBaseDirOrNull, imagesBaseOrNull, null, uriResolverOrNull);
+    }
+
+    /**
+     * @param fontCacheFileOrNull where FOP stores the metrics of the fonts it has found, or null for FOP's default.
+     *                            Ignored if the FOP configuration file contains &lt;use-cache&gt;false&lt;/use-cache&gt;
+     * @return a factory which may be shared with other threads
+     */
+    public @Nonnull FopFactory get(
+        @CheckForNull File fopConfigOrNull, @CheckForNull File fopBaseDirOrNull, @CheckForNull File imagesBaseOrNull,
+        @CheckForNull File fontCacheFileOrNull, @CheckForNull URIResolver uriResolverOrNull
+    ) {
+        lookupCount.incrementAndGet();
+
+        var key = new Key(fopConfigOrNull, fopBaseDirOrNull, imagesBaseOrNull, fontCacheFileOrNull, uriResolverOrNull);
+        var fopConfigLastModified = getLastModified(fopConfigOrNull);
+
+        var existing = factories.getIfPresent(key);
+        if (existing != null && existing.fopConfigLastModified == fopConfigLastModified) {
+            if (imageCacheOrNull != null) {
+                imageCacheOrNull.discardChangedFiles();
+                var generation = imageCacheOrNull.getGeneration();
+                if (existing.imageCacheGeneration.getAndSet(generation) != generation)
+                    existing.fopFactory.getImageManager().getCache().clearCache();
+            }
+            return existing.fopFactory;
+        }
+
+        // Two threads might create a factory for the same key concurrently; that is harmless, the last one wins
+        missCount.incrementAndGet();
+        var result = newFopFactory(key, fopConfigLastModified);
+        factories.put(key, result);
+        return result.fopFactory;
+    }
+
+    public long getHitCount() { return lookupCount.get() - missCount.get(); }
+    public long getMissCount() { return missCount.get(); }
+
+    public @CheckForNull FopImageCache getImageCacheOrNull() { return imageCacheOrNull; }
+
+    public void invalidateAll() { factories.invalidateAll(); }
+}
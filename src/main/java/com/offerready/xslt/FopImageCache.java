@@ -0,0 +1,204 @@
+package com.offerready.xslt;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.fop.apps.io.ResourceResolverFactory;
+import org.apache.xmlgraphics.io.Resource;
+import org.apache.xmlgraphics.io.ResourceResolver;
+import org.apache.xmlgraphics.io.URIResolverAdapter;
+import org.apache.xmlgraphics.io.XmlSourceUtil;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the contents of image files read by FOP, such as logos and backgrounds referenced by
+ * <code>&lt;fo:external-graphic&gt;</code>, so that they are read once, rather than once per PDF.
+ * One object is shared by all {@link FopFactoryCache} factories, and may be used by any number of concurrent renders.
+ *    <p>
+ * Images are keyed by their resolved URI, for example relative to the images base directory, or as resolved by the
+ * application's {@link URIResolver}.
+ * Only "file:" URIs are cached, as only they can be checked for changes; other URIs, for example "https:",
+ * are read each time. Only image files, recognized by their extension, are cached; other files which FOP reads via the
+ * same resolver, such as fonts if no FOP base directory is set, are read each time.
+ * A file is read again if its last-modified time or size has changed. Files are checked each time they are read,
+ * and, as FOP itself holds the images it has read, all image files ever served are checked before a PDF is rendered,
+ * at most once per second, including those which are not or no longer held here, as they are too large or have been
+ * discarded. If a file has changed, FOP's own image cache is cleared as well, see {@link FopFactoryCache}.
+ *    <p>
+ * Images are held up to a total number of bytes, and the least-recently used ones are discarded.
+ */
+public class FopImageCache {
+
+    protected static final long changeCheckIntervalMillis = 1_000;
+
+    /** Extensions of the image formats which FOP can read */
+    protected static final @Nonnull Set<String> imageFileExtensions = Set.of(
+        "png", "jpg", "jpeg", "gif", "bmp", "tif", "tiff", "svg", "svgz", "eps", "emf", "wmf");
+
+    protected record CachedImage(@CheckForNull String typeOrNull, @Nonnull byte[] bytes, long lastModified, long length) { }
+
+    /** The last-modified time and size of a file, when it was last served */
+    protected record FileVersion(long lastModified, long length) { }
+
+    protected final @Nonnull Cache<URI, CachedImage> images;
+
+    /** Every image file served, whether held in {@link #images} or not, as FOP may hold its own copy of each */
+    protected final @Nonnull ConcurrentMap<URI, FileVersion> servedFiles = new ConcurrentHashMap<>();
+    protected final long maximumImageBytes;
+    protected final @Nonnull AtomicLong hitCount = new AtomicLong(), missCount = new AtomicLong(), byteCount = new AtomicLong();
+    protected final @Nonnull AtomicLong generation = new AtomicLong(), lastChangeCheckMillis = new AtomicLong();
+
+    /**
+     * @param maximumBytes the total size of the images held, before the least-recently used ones are discarded.
+     *                     Images larger than a tenth of this are not cached.
+     */
+    public FopImageCache(long maximumBytes) {
+        images = CacheBuilder.newBuilder()
+            .maximumWeight(maximumBytes)
+            .weigher((URI uri, CachedImage i) -> i.bytes.length)
+            .removalListener(n -> { if (n.getValue() != null) byteCount.addAndGet(-n.getValue().bytes.length); })
+            .build();
+        maximumImageBytes = maximumBytes / 10;
+    }
+
+    /** @return the file, or null if the URI is not a local file */
+    protected static @CheckForNull File toFileOrNull(@Nonnull URI uri) {
+        if ( ! "file".equalsIgnoreCase(uri.getScheme())) return null;
+        try { return new File(uri); }
+        catch (IllegalArgumentException e) { return null; } // e.g. has a query string
+    }
+
+    protected static boolean isImageFile(@Nonnull File file) {
+        var name = file.getName().toLowerCase(Locale.ROOT);
+        return imageFileExtensions.contains(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    protected void invalidate(@Nonnull URI uri) {
+        images.invalidate(uri);
+        generation.incrementAndGet();
+    }
+
+    /** @return the resource from the cache, or reads it with the resolver if it is not cached or the file has changed */
+    protected @Nonnull Resource getResource(@Nonnull URI uri, @Nonnull ResourceResolver resolver) throws IOException {
+        var file = toFileOrNull(uri);
+        if (file == null || ! isImageFile(file)) return resolver.getResource(uri);
+
+        var lastModified = file.lastModified();
+        var length = file.length();
+        var previous = servedFiles.put(uri, new FileVersion(lastModified, length));
+        if (previous != null && (previous.lastModified != lastModified || previous.length != length)) generation.incrementAndGet();
+
+        var cached = images.getIfPresent(uri);
+        if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+            hitCount.incrementAndGet();
+            return new Resource(cached.typeOrNull, new ByteArrayInputStream(cached.bytes));
+        }
+
+        missCount.incrementAndGet();
+        if (cached != null) invalidate(uri);
+        if (lastModified == 0 || length > maximumImageBytes) return resolver.getResource(uri); // e.g. does not exist
+
+        // Two threads might read the same file concurrently; that is harmless, the last one wins
+        byte[] bytes;
+        String type;
+        try (var resource = resolver.getResource(uri)) {
+            type = resource.getType();
+            bytes = resource.readAllBytes();
+        }
+        if (bytes.length == length && file.lastModified() == lastModified) {
+            images.put(uri, new CachedImage(type, bytes, lastModified, length));
+            byteCount.addAndGet(bytes.length);
+        }
+        return new Resource(type, new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * @param uriResolverOrNull if not null, URIs are first passed to this, as FOP's {@link URIResolverAdapter} does.
+     *     If it returns a source with content, for example an image generated by the application, that is not cached.
+     *     If it returns a source with only a system ID, that resolved URI is read, via the cache.
+     *     If it returns a source with neither, the original URI is read.
+     * @return a resolver for FOP which reads files via this cache
+     */
+    public @Nonnull ResourceResolver newResourceResolver(@CheckForNull URIResolver uriResolverOrNull) {
+        var defaultResolver = ResourceResolverFactory.createDefaultResourceResolver();
+        return new ResourceResolver() {
+            @Override public @Nonnull Resource getResource(@Nonnull URI uri) throws IOException {
+                if (uriResolverOrNull == null) return FopImageCache.this.getResource(uri, defaultResolver);
+
+                Source source;
+                try { source = uriResolverOrNull.resolve(uri.toASCIIString(), null); }
+                catch (TransformerException e) { throw new IOException(e.getMessage(), e); }
+                if (source == null) return FopImageCache.this.getResource(uri, defaultResolver);
+
+                var stream = XmlSourceUtil.getInputStream(source);
+                if (stream != null) return new Resource(stream);
+                if (source.getSystemId() == null) return FopImageCache.this.getResource(uri, defaultResolver);
+
+                URI resolved;
+                try { resolved = new URI(source.getSystemId()); }
+                catch (URISyntaxException e) { return new Resource(new URL(source.getSystemId()).openStream()); } // e.g. a path with spaces, read as URIResolverAdapter does
+                return FopImageCache.this.getResource(resolved, defaultResolver);
+            }
+
+            @Override public @Nonnull OutputStream getOutputStream(@Nonnull URI uri) throws IOException {
+                return defaultResolver.getOutputStream(uri);
+            }
+        };
+    }
+
+    /**
+     * Discards images whose files have changed since they were served, if they have not been checked within the last second.
+     * Files which are not held here are checked as well, so that FOP's own image cache is cleared if they have changed.
+     */
+    public void discardChangedFiles() {
+        var now = System.currentTimeMillis();
+        var last = lastChangeCheckMillis.get();
+        if (now - last < changeCheckIntervalMillis || ! lastChangeCheckMillis.compareAndSet(last, now)) return;
+
+        for (var e : servedFiles.entrySet()) {
+            var file = new File(e.getKey()); // Only "file:" URIs are recorded
+            var current = new FileVersion(file.lastModified(), file.length());
+            if ( ! current.equals(e.getValue()) && servedFiles.replace(e.getKey(), e.getValue(), current)) invalidate(e.getKey());
+        }
+    }
+
+    /** @return a number which changes whenever an image is discarded as its file has changed */
+    public long getGeneration() { return generation.get(); }
+
+    public long getHitCount() { return hitCount.get(); }
+    public long getMissCount() { return missCount.get(); }
+
+    /** @return the fraction of image reads which were served from the cache, from 0 to 1 */
+    public double getHitRatio() {
+        var hits = hitCount.get();
+        var lookups = hits + missCount.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /** @return the total size of the images held */
+    public long getByteCount() { return byteCount.get(); }
+
+    public long getImageCount() { return images.size(); }
+
+    public void invalidateAll() {
+        images.invalidateAll();
+        servedFiles.clear();
+        generation.incrementAndGet();
+    }
+}
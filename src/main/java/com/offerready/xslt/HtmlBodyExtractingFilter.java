@@ -0,0 +1,205 @@
+package com.offerready.xslt;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Extracts the body of an HTML document, as {@link HtmlBodyExtractor} does, but from the SAX events of the document
+ * as they are produced, for example by an XSLT, rather than from its text.
+ * The extracted parts are passed to another handler, for example a serializer writing to the response.
+ *    <p>
+ * The contents of the &lt;body&gt; are passed on as they arrive, so the body is never held in memory.
+ * The parts which appear before the body are held until the body starts, and are then passed on in the same order
+ * as {@link HtmlBodyExtractor} returns them: &lt;style&gt; elements, then "not IE" conditional sections
+ * (<code>&lt;!--[if !IE]&gt;&lt;!--&gt;...&lt;!--&lt;![endif]--&gt;</code>),
+ * then "IE" conditional comments (<code>&lt;!--[if IE]&gt;...&lt;![endif]--&gt;</code>).
+ * Each part is followed by a newline. Everything after the body is ignored.
+ *    <p>
+ * If the next handler is a {@link LexicalHandler}, comments are passed to it.
+ */
+public class HtmlBodyExtractingFilter extends XMLFilterImpl implements LexicalHandler {
+
+    /** A SAX event recorded before the body, which is passed on once the body starts */
+    protected interface Event {
+        void sendTo(@Nonnull ContentHandler handler, @CheckForNull LexicalHandler lexicalHandlerOrNull) throws SAXException;
+    }
+
+    protected final @CheckForNull LexicalHandler lexicalHandlerOrNull;
+    protected final @Nonnull List<String> scriptsToIgnore;
+
+    protected final @Nonnull List<Event> styles = new ArrayList<>(), notIeSections = new ArrayList<>(), ieOnlyComments = new ArrayList<>();
+    protected @CheckForNull List<Event> recordingOrNull = null;
+    protected int depth = 0, recordingDepth = -1, bodyDepth = -1, ignoredScriptDepth = -1;
+    protected boolean bodyStarted = false, bodyEnded = false;
+
+    /** @param scriptsToIgnore as {@link HtmlBodyExtractor#addScriptToIgnore(String)}, for example "jquery" */
+    public HtmlBodyExtractingFilter(@Nonnull ContentHandler next, @Nonnull List<String> scriptsToIgnore) {
+        setContentHandler(next);
+        this.lexicalHandlerOrNull = next instanceof LexicalHandler l ? l : null;
+        this.scriptsToIgnore = scriptsToIgnore;
+    }
+
+    public HtmlBodyExtractingFilter(@Nonnull ContentHandler next) {
+        this(next, List.of());
+    }
+
+    protected static @Nonnull String getHtmlName(@Nonnull String localName, @Nonnull String qName) {
+        return (localName.isEmpty() ? qName : localName).toLowerCase(Locale.ROOT);
+    }
+
+    protected boolean isInBody() {
+        return bodyStarted && ! bodyEnded;
+    }
+
+    /** @return true if events are currently passed on or recorded, as opposed to ignored */
+    protected boolean isExtracting() {
+        return ignoredScriptDepth < 0 && (isInBody() || recordingOrNull != null);
+    }
+
+    protected void extract(@Nonnull Event event) throws SAXException {
+        if (ignoredScriptDepth >= 0) return;
+        if (isInBody()) event.sendTo(getContentHandler(), lexicalHandlerOrNull);
+        else if (recordingOrNull != null) recordingOrNull.add(event);
+    }
+
+    protected static @Nonnull Event newComment(@Nonnull String text) {
+        return (h, l) -> { if (l != null) l.comment(text.toCharArray(), 0, text.length()); };
+    }
+
+    protected void sendNewline() throws SAXException {
+        getContentHandler().characters(new char[] { '\n' }, 0, 1);
+    }
+
+    protected void sendPartsBeforeBody() throws SAXException {
+        for (var part : List.of(styles, notIeSections, ieOnlyComments)) {
+            for (var event : part) event.sendTo(getContentHandler(), lexicalHandlerOrNull);
+            part.clear();
+            sendNewline();
+        }
+    }
+
+    protected @CheckForNull String getIgnoredScriptOrNull(@Nonnull String name, @Nonnull Attributes atts) {
+        if ( ! name.equals("script")) return null;
+        var src = atts.getValue("src");
+        if (src == null) return null;
+        for (var s : scriptsToIgnore) if (src.contains(s)) return s;
+        return null;
+    }
+
+    @Override public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        depth++;
+        if (ignoredScriptDepth >= 0 || bodyEnded) return;
+
+        var name = getHtmlName(localName, qName);
+        if ( ! bodyStarted && name.equals("body")) {
+            bodyStarted = true;
+            bodyDepth = depth;
+            recordingOrNull = null;
+            sendPartsBeforeBody();
+            return;
+        }
+        if ( ! bodyStarted && recordingOrNull == null && name.equals("style")) {
+            recordingOrNull = styles;
+            recordingDepth = depth;
+        }
+        if ( ! isExtracting()) return;
+
+        var ignoredScript = getIgnoredScriptOrNull(name, atts);
+        if (ignoredScript != null) {
+            extract(newComment(" ignoring " + ignoredScript + " "));
+            ignoredScriptDepth = depth;
+            return;
+        }
+
+        if (isInBody()) super.startElement(uri, localName, qName, atts);
+        else {
+            var copy = new AttributesImpl(atts);
+            extract((h, l) -> h.startElement(uri, localName, qName, copy));
+        }
+    }
+
+    @Override public void endElement(String uri, String localName, String qName) throws SAXException {
+        try {
+            if (depth == ignoredScriptDepth) { ignoredScriptDepth = -1; return; }
+            if (depth == bodyDepth) { bodyEnded = true; bodyDepth = -1; sendNewline(); return; }
+            extract((h, l) -> h.endElement(uri, localName, qName));
+            if (recordingOrNull == styles && depth == recordingDepth) recordingOrNull = null;
+        }
+        finally {
+            depth--;
+        }
+    }
+
+    @Override public void characters(char[] ch, int start, int length) throws SAXException {
+        if ( ! isExtracting()) return;
+        if (isInBody()) super.characters(ch, start, length);
+        else {
+            var copy = new String(ch, start, length).toCharArray();
+            extract((h, l) -> h.characters(copy, 0, copy.length));
+        }
+    }
+
+    @Override public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    @Override public void processingInstruction(String target, String data) throws SAXException {
+        extract((h, l) -> h.processingInstruction(target, data));
+    }
+
+    @Override public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        if (isInBody()) super.startPrefixMapping(prefix, uri);
+    }
+
+    @Override public void endPrefixMapping(String prefix) throws SAXException {
+        if (isInBody()) super.endPrefixMapping(prefix);
+    }
+
+    @Override public void endDocument() throws SAXException {
+        if ( ! bodyStarted) {
+            sendPartsBeforeBody();
+            sendNewline(); // the empty body
+        }
+        super.endDocument();
+    }
+
+    @Override public void comment(char[] ch, int start, int length) throws SAXException {
+        if (ignoredScriptDepth >= 0 || bodyEnded) return;
+
+        var text = new String(ch, start, length);
+        if ( ! bodyStarted && recordingOrNull == null && text.startsWith("[if IE]>")) {
+            ieOnlyComments.add(newComment(text));
+            return;
+        }
+        if ( ! bodyStarted && recordingOrNull == null && text.startsWith("[if !IE]>")) {
+            if (text.endsWith("<![endif]")) { notIeSections.add(newComment(text)); return; } // The whole section is within one comment
+            recordingOrNull = notIeSections;
+        }
+
+        extract(newComment(text));
+        if (recordingOrNull == notIeSections && text.startsWith("<![endif]")) recordingOrNull = null;
+    }
+
+    @Override public void startCDATA() throws SAXException {
+        extract((h, l) -> { if (l != null) l.startCDATA(); });
+    }
+
+    @Override public void endCDATA() throws SAXException {
+        extract((h, l) -> { if (l != null) l.endCDATA(); });
+    }
+
+    @Override public void startDTD(String name, String publicId, String systemId) { }
+    @Override public void endDTD() { }
+    @Override public void startEntity(String name) { }
+    @Override public void endEntity(String name) { }
+}
@@ -4,85 +4,177 @@ import com.databasesandlife.util.Timer;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeMap;
 import java.util.regex.Pattern;
 
 /**
  * Extracts the body of an HTML report document.
  *    <p>
- * An "HTML document generator" generates HTML, suitable for viewing in a browser, or inclusion in an iframe. 
+ * An "HTML document generator" generates HTML, suitable for viewing in a browser, or inclusion in an iframe.
  * However, this HTML contains e.g. &lt;html&gt; tags which are not suitable for display within a &lt;div&gt;.
  * Objects of this class extract the relevant information from the HTML document, and return an HTML
  * string suitable for inclusion in a &lt;div&gt;.
  *    <p>
  * The entire contents of the &lt;body&gt; are returned.
  * Any &lt;style&gt; tags in the &lt;head&gt; are extracted are prepended to this body.
+ *    <p>
+ * The HTML is scanned once, and the time taken is proportional to its length.
  */
 public class HtmlBodyExtractor {
-    
-    protected List<String> scriptsToIgnore = new ArrayList<>();
-    
-    protected static class Range {
-        int startIncl, endExcl;
-        Range(int s, int e) { startIncl = s; endExcl = e; }
-        boolean overlaps(Range x) { 
-            if (x.endExcl <= startIncl) return false;
-            if (x.startIncl >= endExcl) return false;
-            return true;
+
+    /**
+     * The parts of the HTML which are extracted.
+     * Parts are extracted in this order; a part overlapping one already extracted is ignored.
+     * In the result, the parts appear in the reverse order.
+     */
+    protected enum Part {
+        body("<body", ">", "</body>"),
+        ieOnly("<!--[if IE]>", null, "<![endif]-->"),
+        notIe("<!--[if !IE]>", null, "<!--<![endif]-->"),
+        style("<style", null, "</style>");
+
+        /** @param endOfStartOrNull if not null, only the contents after this and before the end are extracted */
+        Part(@Nonnull String start, @CheckForNull String endOfStartOrNull, @Nonnull String end) {
+            this.start = start;
+            this.endOfStartOrNull = endOfStartOrNull;
+            this.end = end;
         }
+
+        protected final @Nonnull String start, end;
+        protected final @CheckForNull String endOfStartOrNull;
     }
-    
+
+    protected record IgnoredScript(@Nonnull String scriptSubstring, @Nonnull Pattern pattern, @Nonnull String replacement) { }
+
+    protected record Range(int startIncl, int endExcl) { }
+
+    /** Finds a string after positions which only increase, so that the HTML is searched at most once for each string */
+    protected static class ForwardSearch {
+        protected final @Nonnull CharSequence html;
+        protected final @Nonnull String target;
+        protected boolean searched = false;
+        protected int found = -1;
+
+        protected ForwardSearch(@Nonnull CharSequence html, @Nonnull String target) {
+            this.html = html;
+            this.target = target;
+        }
+
+        /** @return the index of the target at or after "from", or -1 */
+        protected int indexOf(int from) {
+            if (searched && (found < 0 || found >= from)) return found;
+            searched = true;
+            return found = HtmlBodyExtractor.indexOf(html, target, from);
+        }
+    }
+
+    protected final @Nonnull List<IgnoredScript> scriptsToIgnore = new ArrayList<>();
+
     /**
      * For example if JQuery should not be included; simply add "jquery" to this method and this &lt;script&gt;
      * tag will not be included in the result.
      */
     public @Nonnull HtmlBodyExtractor addScriptToIgnore(@Nonnull String scriptSubstring) {
-        scriptsToIgnore.add(scriptSubstring);
+        scriptsToIgnore.add(new IgnoredScript(scriptSubstring,
+            Pattern.compile("<script src=['\"][^'\"]*" + Pattern.quote(scriptSubstring) + "[^'\"]*['\"]></script>"),
+            "<!-- ignoring " + scriptSubstring + " -->"));
         return this;
     }
-    
+
+    protected static boolean regionMatches(@Nonnull CharSequence html, int offset, @Nonnull String target) {
+        if (html instanceof String s) return s.startsWith(target, offset);
+        if (offset + target.length() > html.length()) return false;
+        for (int i = 0; i < target.length(); i++) if (html.charAt(offset + i) != target.charAt(i)) return false;
+        return true;
+    }
+
+    protected static int indexOf(@Nonnull CharSequence html, char target, int from) {
+        if (html instanceof String s) return s.indexOf(target, from);
+        for (int i = Math.max(0, from); i < html.length(); i++) if (html.charAt(i) == target) return i;
+        return -1;
+    }
+
+    protected static int indexOf(@Nonnull CharSequence html, @Nonnull String target, int from) {
+        if (html instanceof String s) return s.indexOf(target, from);
+        for (int i = Math.max(0, from); i <= html.length() - target.length(); i++)
+            if (regionMatches(html, i, target)) return i;
+        return -1;
+    }
+
     protected @Nonnull String ignoreScripts(@Nonnull String html) {
+        if ( ! html.contains("<script src=")) return html;
         for (var s : scriptsToIgnore)
-            html = html.replaceAll(
-                "<script src=['\"][^'\"]*" + Pattern.quote(s) + "[^'\"]*['\"]></script>", 
-                "<!-- ignoring " + s + " -->");
+            if (html.contains(s.scriptSubstring)) html = s.pattern.matcher(html).replaceAll(s.replacement);
         return html;
     }
-    
-    protected void extractElements(
-        @Nonnull StringBuilder result, @Nonnull String input,
-        @Nonnull List<Range> ranges,
-        @Nonnull String start, @CheckForNull String endOfStartOrNull, @Nonnull String end
-    ) {
-        var startIdx = -1;
-        var ourResult = new StringBuilder();
-        while ((startIdx = input.indexOf(start, startIdx+1)) >= 0) {
-            var idxOfEndTag = input.indexOf(end, startIdx);
-            Range range = endOfStartOrNull == null 
-                ? new Range(startIdx, idxOfEndTag + end.length())
-                : new Range(input.indexOf(endOfStartOrNull, startIdx) + endOfStartOrNull.length(), idxOfEndTag);
-            var rangeOverlaps = false;
-            for (var r : ranges) if (r.overlaps(range)) rangeOverlaps = true;
-            if (rangeOverlaps) continue;
-            ourResult.append(ignoreScripts(input.substring(range.startIncl, range.endExcl)));
-            ranges.add(range);
+
+    /** @return true if the range overlaps one of the extracted ranges, which are stored as start to greatest end */
+    protected static boolean overlapsExtracted(@Nonnull TreeMap<Integer, Integer> extracted, @Nonnull Range range) {
+        var previous = extracted.lowerEntry(range.endExcl);
+        return previous != null && previous.getValue() > range.startIncl;
+    }
+
+    /** @return for each part, the ranges which would be extracted if they don't overlap other parts, in document order */
+    protected @Nonnull List<List<Range>> findCandidates(@Nonnull CharSequence html) {
+        var parts = Part.values();
+        var result = new ArrayList<List<Range>>();
+        var endSearches = new ForwardSearch[parts.length];
+        var endOfStartSearches = new ForwardSearch[parts.length];
+        for (var p : parts) {
+            result.add(new ArrayList<>());
+            endSearches[p.ordinal()] = new ForwardSearch(html, p.end);
+            if (p.endOfStartOrNull != null) endOfStartSearches[p.ordinal()] = new ForwardSearch(html, p.endOfStartOrNull);
+        }
+
+        for (int i = indexOf(html, '<', 0); i >= 0 && i + 1 < html.length(); i = indexOf(html, '<', i + 1)) {
+            var next = html.charAt(i + 1);
+            if (next != 'b' && next != '!' && next != 's') continue; // Quickly skip other tags
+            for (var p : parts) {
+                if (p.start.charAt(1) != next || ! regionMatches(html, i, p.start)) continue;
+                var endIdx = endSearches[p.ordinal()].indexOf(i);
+                result.get(p.ordinal()).add(p.endOfStartOrNull == null
+                    ? new Range(i, endIdx + p.end.length())
+                    : new Range(endOfStartSearches[p.ordinal()].indexOf(i) + p.endOfStartOrNull.length(), endIdx));
+            }
         }
-        ourResult.append("\n");
-        result.insert(0, ourResult);
+
+        return result;
     }
-    
-    public @Nonnull String extractBody(@Nonnull String htmlText) {
+
+    public @Nonnull String extractBody(@Nonnull CharSequence html) {
         try (var ignored = new Timer("HtmlBodyExtractor.extractBody")) {
-            var result  = new StringBuilder();  // 2.5 seconds at 1k iterations on i3
-            var ranges = new ArrayList<Range>();
-            
-            extractElements(result, htmlText, ranges, "<body",         ">",  "</body>");
-            extractElements(result, htmlText, ranges, "<!--[if IE]>",  null, "<![endif]-->");
-            extractElements(result, htmlText, ranges, "<!--[if !IE]>", null, "<!--<![endif]-->");
-            extractElements(result, htmlText, ranges, "<style",        null, "</style>");
-                
+            var candidates = findCandidates(html);
+            var extracted = new TreeMap<Integer, Integer>();
+            var resultForPart = new StringBuilder[Part.values().length];
+            for (var p : Part.values()) {
+                var result = resultForPart[p.ordinal()] = new StringBuilder();
+                for (var range : candidates.get(p.ordinal())) {
+                    if (overlapsExtracted(extracted, range)) continue;
+                    if (scriptsToIgnore.isEmpty()) result.append(html, range.startIncl, range.endExcl);
+                    else result.append(ignoreScripts(html.subSequence(range.startIncl, range.endExcl).toString()));
+                    extracted.merge(range.startIncl, range.endExcl, Math::max);
+                }
+            }
+
+            var result = new StringBuilder(html.length() / 2);
+            for (int p = resultForPart.length - 1; p >= 0; p--) result.append(resultForPart[p]).append("\n");
             return result.toString();
         }
     }
+
+    public @Nonnull String extractBody(@Nonnull String htmlText) {
+        return extractBody((CharSequence) htmlText);
+    }
+
+    /** Reads the HTML, for example a large report from a file; the reader is not closed */
+    public @Nonnull String extractBody(@Nonnull Reader html) throws IOException {
+        var text = new StringBuilder();
+        var buffer = new char[8192];
+        for (int count; (count = html.read(buffer)) >= 0; ) text.append(buffer, 0, count);
+        return extractBody(text);
+    }
 }
@@ -0,0 +1,145 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.DocumentOutputDefinition.OutputConversion;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps histograms of the measurements in memory, per template, and per template and {@link OutputConversion}.
+ *    <p>
+ * Histograms have one bucket per power of two, so percentiles are approximate (to within a factor of two),
+ * but recording a value is cheap and needs no locks.
+ * Use {@link #getSnapshot()} to read the values, for example to display them on an admin page.
+ */
+public class InMemoryDocumentGenerationMetrics implements DocumentGenerationMetrics {
+
+    public static class Histogram {
+        protected final @Nonnull AtomicLongArray buckets = new AtomicLongArray(64);
+        protected final @Nonnull AtomicLong count = new AtomicLong(), sum = new AtomicLong(),
+            min = new AtomicLong(Long.MAX_VALUE), max = new AtomicLong(Long.MIN_VALUE);
+
+        public void record(long value) {
+            var v = Math.max(0, value);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v)); // Bucket i holds values up to 2^i - 1
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            min.accumulateAndGet(v, Math::min);
+            max.accumulateAndGet(v, Math::max);
+        }
+
+        /** @return the upper bound of the bucket containing the percentile, but no more than the maximum value */
+        protected long getPercentile(long count, double percent) {
+            var rank = (long) Math.ceil(percent / 100.0 * count);
+            var seen = 0L;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(max.get(), i == 63 ? Long.MAX_VALUE : (1L << i) - 1);
+            }
+            return max.get();
+        }
+
+        public @Nonnull HistogramSnapshot getSnapshot() {
+            var c = count.get();
+            if (c == 0) return new HistogramSnapshot(0, 0, 0, 0, 0, 0, 0);
+            return new HistogramSnapshot(c, sum.get(), min.get(), getPercentile(c, 50), getPercentile(c, 95),
+                getPercentile(c, 99), max.get());
+        }
+    }
+
+    /** Values are nanoseconds for times, and bytes for output sizes */
+    public record HistogramSnapshot(long count, long sum, long min, long p50, long p95, long p99, long max) {
+        public double getMean() { return count == 0 ? 0 : (double) sum / count; }
+    }
+
+    protected static class ConversionMetrics {
+        protected final @Nonnull Histogram transformNanos = new Histogram(), postConversionNanos = new Histogram(),
+            outputBytes = new Histogram();
+        protected final @Nonnull AtomicLong errorCount = new AtomicLong();
+        protected final @Nonnull AtomicInteger inFlight = new AtomicInteger();
+    }
+
+    protected static class TemplateMetrics {
+        protected final @Nonnull Histogram compileNanos = new Histogram();
+        protected final @Nonnull Map<String, AtomicLong> cacheHits = new ConcurrentHashMap<>(), cacheMisses = new ConcurrentHashMap<>();
+        protected final @Nonnull Map<OutputConversion, ConversionMetrics> conversions = new ConcurrentHashMap<>();
+
+        protected @Nonnull ConversionMetrics get(@Nonnull OutputConversion conversion) {
+            return conversions.computeIfAbsent(conversion, c -> new ConversionMetrics());
+        }
+    }
+
+    public record ConversionSnapshot(
+        @Nonnull HistogramSnapshot transformNanos, @Nonnull HistogramSnapshot postConversionNanos,
+        @Nonnull HistogramSnapshot outputBytes, long errorCount, int inFlight
+    ) { }
+
+    public record TemplateSnapshot(
+        @Nonnull HistogramSnapshot compileNanos, @Nonnull Map<String, Long> cacheHits, @Nonnull Map<String, Long> cacheMisses,
+        @Nonnull Map<OutputConversion, ConversionSnapshot> conversions
+    ) { }
+
+    protected final @Nonnull Map<String, TemplateMetrics> templates = new ConcurrentHashMap<>();
+
+    protected @Nonnull TemplateMetrics get(@Nonnull String template) {
+        return templates.computeIfAbsent(template, t -> new TemplateMetrics());
+    }
+
+    @Override public void recordCompilation(@Nonnull String template, @Nonnull Duration duration) {
+        get(template).compileNanos.record(duration.toNanos());
+    }
+
+    @Override public void recordCacheLookup(@Nonnull String cache, @Nonnull String template, boolean hit) {
+        var t = get(template);
+        (hit ? t.cacheHits : t.cacheMisses).computeIfAbsent(cache, c -> new AtomicLong()).incrementAndGet();
+    }
+
+    @Override public void recordTransformationStarted(@Nonnull String template, @Nonnull OutputConversion conversion) {
+        get(template).get(conversion).inFlight.incrementAndGet();
+    }
+
+    @Override public void recordTransformationFinished(
+        @Nonnull String template, @Nonnull OutputConversion conversion, @Nonnull Duration transformTime,
+        @CheckForNull Duration postConversionTimeOrNull, long outputBytes, boolean success
+    ) {
+        var c = get(template).get(conversion);
+        c.inFlight.decrementAndGet();
+        c.transformNanos.record(transformTime.toNanos());
+        if (postConversionTimeOrNull != null) c.postConversionNanos.record(postConversionTimeOrNull.toNanos());
+        c.outputBytes.record(outputBytes);
+        if ( ! success) c.errorCount.incrementAndGet();
+    }
+
+    protected static @Nonnull Map<String, Long> snapshot(@Nonnull Map<String, AtomicLong> counts) {
+        var result = new TreeMap<String, Long>();
+        counts.forEach((k, v) -> result.put(k, v.get()));
+        return result;
+    }
+
+    /** @return the measurements so far, by template, sorted by template */
+    public @Nonnull Map<String, TemplateSnapshot> getSnapshot() {
+        var result = new TreeMap<String, TemplateSnapshot>();
+        for (var t : templates.entrySet()) {
+            var conversions = new EnumMap<OutputConversion, ConversionSnapshot>(OutputConversion.class);
+            for (var c : t.getValue().conversions.entrySet())
+                conversions.put(c.getKey(), new ConversionSnapshot(c.getValue().transformNanos.getSnapshot(),
+                    c.getValue().postConversionNanos.getSnapshot(), c.getValue().outputBytes.getSnapshot(),
+                    c.getValue().errorCount.get(), c.getValue().inFlight.get()));
+            result.put(t.getKey(), new TemplateSnapshot(t.getValue().compileNanos.getSnapshot(),
+                snapshot(t.getValue().cacheHits), snapshot(t.getValue().cacheMisses), conversions));
+        }
+        return result;
+    }
+
+    public void reset() {
+        templates.clear();
+    }
+}
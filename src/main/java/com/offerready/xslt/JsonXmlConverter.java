@@ -1,13 +1,18 @@
 package com.offerready.xslt;
 
-import lombok.extern.slf4j.Slf4j;
 import org.json.*;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import javax.annotation.Nonnull;
 import java.io.*;
+import java.util.*;
 import java.util.regex.Pattern;
 import java.util.stream.StreamSupport;
 
@@ -22,7 +27,6 @@ import static java.util.stream.Collectors.toMap;
  * The default libraries use "content":"xyz" for the body of XML tags, we use "_content"
  * so that JSON with actual "content":"xyz" can be parsed into &lt;content&gt;xyz&lt;/content&gt;
  */
-@Slf4j
 public class JsonXmlConverter {
 
     protected static final XMLParserConfiguration config = XMLParserConfiguration.ORIGINAL.withcDataTagName("_content");
@@ -59,19 +63,173 @@ public class JsonXmlConverter {
         else return input;
     }
 
-    public @Nonnull Element convertJsonToXml(@Nonnull Reader json, @Nonnull String rootElement)
-    throws JSONException, IOException {
-        var jsonObject = new JSONTokener(json).nextValue();
-        var jsonObjectWithSafeKeys = makeKeysInJsonSafeForXml(jsonObject);
-        var xmlString = XML.toString(jsonObjectWithSafeKeys, rootElement, config);
+    /**
+     * Reads JSON tokens and creates the DOM nodes directly.
+     *    <p>
+     * The result is identical to making the keys safe with {@link #makeKeysInJsonSafeForXml(Object)},
+     * converting with {@link XML#toString(Object, String, XMLParserConfiguration)} and parsing the resulting string,
+     * including the order of elements, which is the iteration order of the {@link HashMap}s used by that process.
+     */
+    protected class JsonToXmlBuilder {
+        protected final @Nonnull JSONTokener json;
+        protected final @Nonnull Document document = newDocumentBuilder().newDocument();
+        protected final @Nonnull Map<String, String> safeKeyForKey = new HashMap<>();
+
+        protected JsonToXmlBuilder(@Nonnull JSONTokener json) { this.json = json; }
+
+        protected @Nonnull String getSafeKey(@Nonnull String key) {
+            return safeKeyForKey.computeIfAbsent(key,
+                k -> makeKeySafeForXml(patternNonFirstChar, makeKeySafeForXml(patternFirstChar, k)));
+        }
 
-        try {
-            return newDocumentBuilder().parse(new InputSource(new StringReader(xmlString))).getDocumentElement();
+        protected @Nonnull Element newElement(@Nonnull String tagName) {
+            try { return document.createElementNS(null, tagName); }
+            catch (DOMException e) {
+                // DOM does not allow an element named "xmlns" to be created, although the XML parser accepts one
+                try { return (Element) document.adoptNode(newDocumentBuilder().parse(
+                    new InputSource(new StringReader("<" + tagName + "/>"))).getDocumentElement()); }
+                catch (SAXException | IOException e2) { throw new JSONException("Cannot create XML element <" + tagName + ">", e); }
+            }
         }
-        catch (SAXException e) {
-            log.info("JSON converted to XML: " + xmlString);
-            throw new JSONException(e);
+
+        /** Only characters which are valid in XML documents are allowed */
+        protected @Nonnull String newTextContent(@Nonnull String text) {
+            for (int i = 0; i < text.length(); ) {
+                var c = text.codePointAt(i);
+                var valid = c == 0x9 || c == 0xA || c == 0xD || (c >= 0x20 && c <= 0xD7FF)
+                    || (c >= 0xE000 && c <= 0xFFFD) || (c >= 0x10000 && c <= 0x10FFFF);
+                if ( ! valid) throw new JSONException(String.format("Character 0x%x is not allowed in XML", c));
+                i += Character.charCount(c);
+            }
+            return text;
+        }
+
+        protected void appendText(@Nonnull Node parent, @Nonnull String text) {
+            if ( ! text.isEmpty()) parent.appendChild(document.createTextNode(newTextContent(text)));
+        }
+
+        /** Reads the next value, and appends nodes for it with the element name tagName */
+        protected void appendValue(@Nonnull Node parent, @Nonnull String tagName) {
+            var c = json.nextClean();
+            if (c == '{') {
+                var element = newElement(tagName);
+                parent.appendChild(element);
+                appendObjectContents(element);
+            } else if (c == '[') {
+                appendArray(parent, tagName, false);
+            } else {
+                json.back();
+                var scalar = json.nextValue();
+                var element = newElement(tagName);
+                parent.appendChild(element);
+                appendText(element, scalar.toString());
+            }
+        }
+
+        /**
+         * Reads the elements of an array, after its "[", each of which creates nodes with the element name tagName.
+         * @param wrapNestedArrays as for an array which is the value of an object key: an array within it becomes
+         *     one element tagName containing "array" elements. Otherwise, nested arrays are flattened.
+         */
+        protected void appendArray(@Nonnull Node parent, @Nonnull String tagName, boolean wrapNestedArrays) {
+            if (json.nextClean() == ']') return;
+            json.back();
+            while (true) {
+                var c = json.nextClean();
+                if (c == ',') {
+                    json.back();
+                    var element = newElement(tagName);  // JSONArray treats missing elements as null
+                    parent.appendChild(element);
+                    appendText(element, "null");
+                } else if (c == '[' && wrapNestedArrays) {
+                    var element = newElement(tagName);
+                    parent.appendChild(element);
+                    appendArray(element, "array", false);
+                } else {
+                    json.back();
+                    appendValue(parent, tagName);
+                }
+                switch (json.nextClean()) {
+                    case ',':
+                        if (json.nextClean() == ']') return;
+                        json.back();
+                        break;
+                    case ']': return;
+                    default: throw json.syntaxError("Expected a ',' or ']'");
+                }
+            }
         }
+
+        /** Reads the keys and values of an object, after its "{" */
+        protected void appendObjectContents(@Nonnull Node parent) {
+            var fragmentForKey = new HashMap<String, Node>();
+            while (true) {
+                var c = json.nextClean();
+                if (c == 0) throw json.syntaxError("A JSONObject text must end with '}'");
+                if (c == '}') break;
+                if (c == '{' || c == '[') throw json.syntaxError("Missing value");
+                json.back();
+                var key = json.nextValue().toString();
+                if (json.nextClean() != ':') throw json.syntaxError("Expected a ':' after a key");
+                if (fragmentForKey.containsKey(key)) throw json.syntaxError("Duplicate key \"" + key + "\"");
+
+                var fragment = document.createDocumentFragment();
+                fragmentForKey.put(key, fragment);
+                var safeKey = getSafeKey(key);
+                if (safeKey.equals(config.getcDataTagName())) appendContent(fragment);
+                else if (json.nextClean() == '[') appendArray(fragment, safeKey, true);
+                else {
+                    json.back();
+                    appendValue(fragment, safeKey);
+                }
+
+                switch (json.nextClean()) {
+                    case ';':
+                    case ',':
+                        if (json.nextClean() == '}') break;
+                        if (json.end()) throw json.syntaxError("A JSONObject text must end with '}'");
+                        json.back();
+                        continue;
+                    case '}': break;
+                    default: throw json.syntaxError("Expected a ',' or '}'");
+                }
+                break;
+            }
+
+            // Same element order as the JSONObjects created by makeKeysInJsonSafeForXml
+            var fragmentForSafeKey = fragmentForKey.keySet().stream().collect(toMap(this::getSafeKey, fragmentForKey::get));
+            var jsonObjectOrder = new HashMap<String, Node>(fragmentForSafeKey.size());
+            for (var e : fragmentForSafeKey.entrySet()) jsonObjectOrder.put(e.getKey(), e.getValue());
+            for (var fragment : jsonObjectOrder.values()) parent.appendChild(fragment);
+        }
+
+        /** The "_content" key becomes the text of its element */
+        protected void appendContent(@Nonnull Node parent) {
+            var value = makeKeysInJsonSafeForXml(json.nextValue());
+            if (value instanceof JSONArray a) {
+                var text = new StringBuilder();
+                for (int i = 0; i < a.length(); i++) {
+                    if (i > 0) text.append('\n');
+                    text.append(a.opt(i));
+                }
+                appendText(parent, text.toString());
+            }
+            else appendText(parent, value.toString());
+        }
+
+        protected @Nonnull Element build(@Nonnull String rootElement) {
+            var root = document.createDocumentFragment();
+            appendValue(root, rootElement);
+            if (root.getChildNodes().getLength() != 1)
+                throw new JSONException("JSON must produce exactly one XML root element <" + rootElement + ">");
+            document.appendChild(root);
+            return document.getDocumentElement();
+        }
+    }
+
+    public @Nonnull Element convertJsonToXml(@Nonnull Reader json, @Nonnull String rootElement)
+    throws JSONException, IOException {
+        return new JsonToXmlBuilder(new JSONTokener(json)).build(rootElement);
     }
 
     public @Nonnull Element convertJsonToXml(@Nonnull String contentType, @Nonnull InputStream jsonInputStream, @Nonnull String rootElement)
@@ -86,4 +244,156 @@ public class JsonXmlConverter {
         var json = XML.toJSONObject(xml, config);
         return json.toString(2);
     }
+
+    /**
+     * Receives XML as SAX events, for example from an XSLT transformation, and writes JSON to a stream in UTF-8.
+     *    <p>
+     * The JSON has the same structure and formatting as that produced by {@link #convertXmlToJson(String)}:
+     * attributes and child elements become keys, text is in "_content", repeated elements become arrays,
+     * and values which look like numbers or booleans are converted to them.
+     * The only difference is that keys are written in document order, rather than in an undefined order.
+     *    <p>
+     * This avoids the XML being serialized to a string, parsed again, and the JSON being built as a string.
+     *    <p>
+     * The JSON is not written incrementally: a tree of the values is held in memory, and written at the end of the document.
+     * With the semantics of {@link XML#toJSONObject(String, XMLParserConfiguration)}, no member can be written when its element ends:
+     * <ul>
+     * <li>Elements of the same name need not be adjacent, yet become one array. In <code>&lt;a/&gt;&lt;b/&gt;&lt;a/&gt;</code>,
+     * "a" is an array of two values, written before "b", which is only known at the second <code>&lt;a/&gt;</code>.
+     * <li>Whether a member is a single value or an array, and the indentation of its value, depend on whether an element
+     * of the same name follows later in its parent.
+     * <li>An object with one member is formatted differently to one with several, which is only known when the parent ends.
+     * </ul>
+     * The tree holds only the values, which is smaller than the XML string and DOM which this replaces.
+     */
+    public static class XmlToJsonContentHandler extends DefaultHandler {
+
+        protected final @Nonnull OutputStream jsonOutputStream;
+        protected final @Nonnull Deque<Map<String, Object>> openElements = new ArrayDeque<>();
+        protected final @Nonnull List<String[]> pendingNamespaceDeclarations = new ArrayList<>();
+        protected final @Nonnull StringBuilder text = new StringBuilder();
+
+        /** @param jsonOutputStream is flushed but not closed at the end of the document */
+        public XmlToJsonContentHandler(@Nonnull OutputStream jsonOutputStream) {
+            this.jsonOutputStream = jsonOutputStream;
+        }
+
+        /** Values under the same key become an {@link ArrayList}; no other values are lists */
+        @SuppressWarnings("unchecked")
+        protected static void accumulate(@Nonnull Map<String, Object> object, @Nonnull String key, @Nonnull Object value) {
+            var existing = object.get(key);
+            if (existing == null) object.put(key, value);
+            else if (existing instanceof ArrayList<?>) ((List<Object>) existing).add(value);
+            else {
+                var array = new ArrayList<Object>();
+                array.add(existing);
+                array.add(value);
+                object.put(key, array);
+            }
+        }
+
+        /** Text is trimmed, and text between elements which is only whitespace is ignored */
+        protected void flushText() {
+            var start = 0;
+            while (start < text.length() && Character.isWhitespace(text.charAt(start))) start++;
+            var trimmed = text.substring(start).trim();
+            text.setLength(0);
+            if ( ! trimmed.isEmpty() && ! openElements.isEmpty())
+                accumulate(openElements.peek(), config.getcDataTagName(), XML.stringToValue(trimmed));
+        }
+
+        @Override public void startDocument() {
+            openElements.push(new LinkedHashMap<>());
+        }
+
+        @Override public void startPrefixMapping(String prefix, String uri) {
+            pendingNamespaceDeclarations.add(new String[] { prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, uri });
+        }
+
+        @Override public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            flushText();
+            var object = new LinkedHashMap<String, Object>();
+            for (var ns : pendingNamespaceDeclarations) accumulate(object, ns[0], XML.stringToValue(ns[1]));
+            pendingNamespaceDeclarations.clear();
+            for (int i = 0; i < attributes.getLength(); i++)
+                accumulate(object, attributes.getQName(i), XML.stringToValue(attributes.getValue(i)));
+            openElements.push(object);
+        }
+
+        @Override public void endElement(String uri, String localName, String qName) {
+            flushText();
+            var object = openElements.pop();
+            final Object value;
+            if (object.isEmpty()) value = "";
+            else if (object.size() == 1 && object.containsKey(config.getcDataTagName())) value = object.get(config.getcDataTagName());
+            else value = object;
+            accumulate(openElements.getFirst(), qName, value);
+        }
+
+        @Override public void characters(char[] ch, int start, int length) {
+            text.append(ch, start, length);
+        }
+
+        protected void indent(@Nonnull Writer writer, int indent) throws IOException {
+            for (int i = 0; i < indent; i++) writer.write(' ');
+        }
+
+        /** Same formatting as {@link JSONObject#toString(int)} with an indent factor of 2 */
+        @SuppressWarnings("unchecked")
+        protected void writeValue(@Nonnull Writer writer, @Nonnull Object value, int indent) throws IOException {
+            if (value instanceof Map<?, ?> m) {
+                var object = (Map<String, Object>) m;
+                writer.write('{');
+                if (object.size() == 1) {
+                    var entry = object.entrySet().iterator().next();
+                    JSONObject.quote(entry.getKey(), writer);
+                    writer.write(": ");
+                    writeValue(writer, entry.getValue(), indent);
+                } else if ( ! object.isEmpty()) {
+                    var needsComma = false;
+                    for (var entry : object.entrySet()) {
+                        if (needsComma) writer.write(',');
+                        writer.write('\n');
+                        indent(writer, indent + 2);
+                        JSONObject.quote(entry.getKey(), writer);
+                        writer.write(": ");
+                        writeValue(writer, entry.getValue(), indent + 2);
+                        needsComma = true;
+                    }
+                    writer.write('\n');
+                    indent(writer, indent);
+                }
+                writer.write('}');
+            }
+            else if (value instanceof List<?> array) {
+                writer.write('[');
+                if (array.size() == 1) {
+                    writeValue(writer, array.get(0), indent);
+                } else if ( ! array.isEmpty()) {
+                    var needsComma = false;
+                    for (var element : array) {
+                        if (needsComma) writer.write(',');
+                        writer.write('\n');
+                        indent(writer, indent + 2);
+                        writeValue(writer, element, indent + 2);
+                        needsComma = true;
+                    }
+                    writer.write('\n');
+                    indent(writer, indent);
+                }
+                writer.write(']');
+            }
+            else if (value instanceof String str) JSONObject.quote(str, writer);
+            else writer.write(JSONObject.valueToString(value));
+        }
+
+        @Override public void endDocument() throws SAXException {
+            try {
+                var writer = new BufferedWriter(new OutputStreamWriter(jsonOutputStream, UTF_8));
+                writeValue(writer, openElements.pop(), 0);
+                writer.flush();
+            }
+            catch (IOException e) { throw new SAXException(e); }
+        }
+    }
 }
@@ -0,0 +1,212 @@
+package com.offerready.xslt;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.LocatorImpl;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.transform.TransformerException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes SAX events to another handler, which processes them on another thread.
+ * For example, FOP can lay out a PDF while the XSLT is still producing the XSL-FO.
+ *    <p>
+ * Events are passed in batches, via a queue holding a limited number of batches.
+ * If the other thread falls behind, the thread producing the events waits, so the memory used is limited.
+ * If the other handler throws an exception, the thread producing the events receives it.
+ * The location of each event, from the {@link Locator} of the thread producing the events, is passed with it,
+ * so that the other handler can report where an error is.
+ *    <p>
+ * After the events have been produced, call {@link #awaitCompletion()}, or if producing them failed, {@link #abort()}.
+ */
+public class PipelinedContentHandler implements ContentHandler {
+
+    /** A SAX event, which is sent to the other handler on the other thread */
+    protected interface Event {
+        void sendTo(@Nonnull ContentHandler handler) throws SAXException;
+    }
+
+    /** Placed on the queue after the last batch, compared by identity */
+    protected static final @Nonnull List<Event> endOfEvents = new ArrayList<>();
+
+    protected static final long checkConsumerIntervalMillis = 100;
+
+    protected final @Nonnull ContentHandler consumer;
+    protected final @Nonnull BlockingQueue<List<Event>> queue;
+    protected final int batchSize;
+    protected final @Nonnull CompletableFuture<Void> consumed = new CompletableFuture<>();
+    protected @Nonnull List<Event> batch;
+    protected volatile boolean aborted = false;
+    protected @CheckForNull Locator locatorOrNull = null;
+
+    /** Passed to the other handler, and set to the location of each event before the event is passed; used only by the other thread */
+    protected final @Nonnull LocatorImpl consumerLocator = new LocatorImpl();
+
+    /**
+     * @param consumer     receives the events on a thread of the executor
+     * @param batchSize    the number of events passed to the other thread at once
+     * @param maximumBatchCount the number of batches which may be waiting for the other thread
+     */
+    public PipelinedContentHandler(@Nonnull ContentHandler consumer, @Nonnull Executor executor, int batchSize, int maximumBatchCount) {
+        this.consumer = consumer;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(maximumBatchCount);
+        this.batch = new ArrayList<>(batchSize);
+        executor.execute(this::consume);
+    }
+
+    protected void consume() {
+        try {
+            batches:
+            while ( ! aborted) {
+                var events = queue.take();
+                if (events == endOfEvents) break;
+                for (var e : events) {
+                    if (aborted) break batches;
+                    e.sendTo(consumer);
+                }
+            }
+            consumed.complete(null);
+        }
+        catch (Throwable e) {
+            consumed.completeExceptionally(e);
+        }
+    }
+
+    protected @Nonnull SAXException newConsumerException() {
+        try { consumed.getNow(null); }
+        catch (Exception e) {
+            var cause = e.getCause() == null ? e : e.getCause();
+            if (cause instanceof SAXException s) return s;
+            if (cause instanceof Exception x) return new SAXException(x);
+        }
+        return new SAXException("Events could not be processed on the other thread");
+    }
+
+    /** Places the events on the queue, waiting while the queue is full, unless the other thread has failed */
+    protected void put(@Nonnull List<Event> events) throws SAXException {
+        try {
+            while ( ! queue.offer(events, checkConsumerIntervalMillis, TimeUnit.MILLISECONDS))
+                if (consumed.isDone()) throw newConsumerException();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SAXException(e);
+        }
+    }
+
+    protected void add(@Nonnull Event event) throws SAXException {
+        var locator = locatorOrNull;
+        if (locator == null) batch.add(event);
+        else {
+            var location = new LocatorImpl(locator);
+            batch.add(h -> {
+                consumerLocator.setSystemId(location.getSystemId());
+                consumerLocator.setPublicId(location.getPublicId());
+                consumerLocator.setLineNumber(location.getLineNumber());
+                consumerLocator.setColumnNumber(location.getColumnNumber());
+                event.sendTo(h);
+            });
+        }
+        if (batch.size() >= batchSize) {
+            put(batch);
+            batch = new ArrayList<>(batchSize);
+        }
+    }
+
+    /** Waits until the other handler has processed all events; if interrupted, stops the other thread, see {@link #abort()} */
+    public void awaitCompletion() throws TransformerException {
+        try {
+            consumed.get();
+        }
+        catch (InterruptedException e) {
+            abort();
+            Thread.currentThread().interrupt();
+            throw new TransformerException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof TransformerException t) throw t;
+            if (e.getCause() instanceof RuntimeException r) throw r;
+            if (e.getCause() instanceof Error r) throw r;
+            throw new TransformerException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the other thread, for example as the events could not be produced.
+     * Waits until the other handler has returned from the event it is processing,
+     * so that, for example, the stream which it writes to may then be closed.
+     */
+    public void abort() {
+        aborted = true;
+        queue.clear();
+        queue.offer(endOfEvents); // In case the other thread is waiting for events
+        try { consumed.join(); }
+        catch (CompletionException | CancellationException ignored) { } // The caller already has an exception to report
+    }
+
+    @Override public void setDocumentLocator(Locator locator) {
+        locatorOrNull = locator;
+        batch.add(h -> h.setDocumentLocator(consumerLocator)); // Not via add, which may throw, and this is before the first event
+    }
+
+    @Override public void startDocument() throws SAXException {
+        add(ContentHandler::startDocument);
+    }
+
+    @Override public void endDocument() throws SAXException {
+        add(ContentHandler::endDocument);
+        put(batch);
+        put(endOfEvents);
+        batch = new ArrayList<>();
+    }
+
+    @Override public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        add(h -> h.startPrefixMapping(prefix, uri));
+    }
+
+    @Override public void endPrefixMapping(String prefix) throws SAXException {
+        add(h -> h.endPrefixMapping(prefix));
+    }
+
+    @Override public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        var copy = new AttributesImpl(atts);
+        add(h -> h.startElement(uri, localName, qName, copy));
+    }
+
+    @Override public void endElement(String uri, String localName, String qName) throws SAXException {
+        add(h -> h.endElement(uri, localName, qName));
+    }
+
+    @Override public void characters(char[] ch, int start, int length) throws SAXException {
+        var copy = new String(ch, start, length).toCharArray();
+        add(h -> h.characters(copy, 0, copy.length));
+    }
+
+    @Override public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        var copy = new String(ch, start, length).toCharArray();
+        add(h -> h.ignorableWhitespace(copy, 0, copy.length));
+    }
+
+    @Override public void processingInstruction(String target, @CheckForNull String data) throws SAXException {
+        add(h -> h.processingInstruction(target, data));
+    }
+
+    @Override public void skippedEntity(String name) throws SAXException {
+        add(h -> h.skippedEntity(name));
+    }
+}
@@ -0,0 +1,80 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.destination.DocumentGenerationDestination;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The result of {@link DocumentGenerator#transformAsync}, which stops the running transformation
+ * if it is cancelled or completed exceptionally, for example by {@link #orTimeout}.
+ *    <p>
+ * Saxon offers no way to stop a transformation, so it is stopped by interrupting its thread
+ * (which stops blocking I/O, such as an HTTP request made by an extension function)
+ * and by failing the next write to the destination.
+ */
+public class TransformationFuture extends CompletableFuture<Void> {
+
+    /** Set while the transformation is running */
+    protected @CheckForNull Thread runningThreadOrNull = null;
+
+    protected class StoppableOutputStream extends FilterOutputStream {
+        protected StoppableOutputStream(@Nonnull OutputStream out) { super(out); }
+
+        protected void assertNotStopped() throws InterruptedIOException {
+            if (isDone()) throw new InterruptedIOException("Document generation has been cancelled or has timed out");
+        }
+
+        @Override public void write(int b) throws IOException { assertNotStopped(); out.write(b); }
+        @Override public void write(@Nonnull byte[] b, int off, int len) throws IOException { assertNotStopped(); out.write(b, off, len); }
+        @Override public void flush() throws IOException { assertNotStopped(); out.flush(); }
+    }
+
+    /** @return a destination which fails once this future is done */
+    protected @Nonnull DocumentGenerationDestination newStoppableDestination(@Nonnull DocumentGenerationDestination destination) {
+        return new DocumentGenerationDestination() {
+            @Override public void setContentType(@Nonnull String contentType) {
+                destination.setContentType(contentType);
+            }
+            @Override public void setContentDispositionToDownload(@CheckForNull String filename) {
+                destination.setContentDispositionToDownload(filename);
+            }
+            @Override public @Nonnull OutputStream getOutputStream() {
+                return new StoppableOutputStream(destination.getOutputStream());
+            }
+        };
+    }
+
+    /** @return false if the future has already been cancelled, in which case the transformation should not start */
+    protected synchronized boolean start() {
+        if (isDone()) return false;
+        runningThreadOrNull = Thread.currentThread();
+        return true;
+    }
+
+    protected synchronized void finish() {
+        runningThreadOrNull = null;
+        Thread.interrupted(); // Don't leave the executor's thread interrupted
+    }
+
+    protected synchronized void stop() {
+        if (runningThreadOrNull != null) runningThreadOrNull.interrupt();
+    }
+
+    @Override public boolean completeExceptionally(@Nonnull Throwable e) {
+        var result = super.completeExceptionally(e);
+        if (result) stop();
+        return result;
+    }
+
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        var result = super.cancel(mayInterruptIfRunning);
+        if (result) stop();
+        return result;
+    }
+}
@@ -1,23 +1,46 @@
 package com.offerready.xslt;
 
+import com.databasesandlife.util.DomParser;
 import com.databasesandlife.util.ThreadPool;
 import com.databasesandlife.util.Timer;
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import lombok.SneakyThrows;
-import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.jaxp.TemplatesImpl;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
-import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.Map;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
- * Wraps an XSLT {@link Templates} capable of performing an XSLT transformation.
+ * Wraps a compiled XSLT, an {@link XsltExecutable}, capable of performing an XSLT transformation.
  *    <p>
  * Get an object by using the static method {@link #getTransformerOrScheduleCompilation(XsltCompilationThreads, String, Xslt)}
  * This method maintains a cache by the MD5 of the XSLT file, so that every time an object is requested
@@ -27,13 +50,41 @@ import java.util.Map;
  * as long as transformations might need to be applied using it;
  * the cache caches only weak references.
  *    <p>
+ * The cache may be used concurrently. Requests for the same XSLT share one compilation:
+ * the first thread to need the result (normally a thread of an {@link XsltCompilationThreads}) compiles it,
+ * other threads needing it wait for that compilation. Requests for other XSLTs never wait for it.
+ *    <p>
  * Compilation of an XSLT file can fail (e.g. if the XSLT file is invalid).
  * In this case, the desired behaviour is that all other valid XSLTs can be applied, so no exception is thrown upon compilation.
  * The method {@link #assertValid()} returns void if the template is OK and throws the DocumentTemplateInvalidException otherwise.
+ *    <p>
+ * All XSLTs are compiled and executed with one shared Saxon {@link Processor}, see {@link #getSaxonProcessor()}.
+ * Optionally, {@link XsltTransformer} objects can be pooled and reused, see {@link #setTransformerPoolMaximumSize(int)}.
  */
 public class WeaklyCachedXsltTransformer {
     
-    private static final Map<String, WeakReference<WeaklyCachedXsltTransformer>> cache = new HashMap<>();
+    private static final Cache<String, WeaklyCachedXsltTransformer> cache = CacheBuilder.newBuilder().weakValues().build();
+
+    /**
+     * Shared by all XSLTs, so that they share one Saxon configuration, including its name pool.
+     * Saxon-PE is used if it is available, as it offers e.g. extension functions.
+     */
+    protected static final @Nonnull Processor processor = new Processor(true);
+
+    protected static final @Nonnull String identityXslt =
+        "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>" +
+        "<xsl:template match='/'><xsl:copy-of select='.'/></xsl:template>" +
+        "</xsl:stylesheet>";
+    protected static @CheckForNull XsltExecutable identityExecutable = null;
+
+    /** Functions whose result may differ between calls with the same arguments, or which read resources which may change */
+    protected static final @Nonnull Pattern nonDeterministicFunction = Pattern.compile(
+        "(?<![\\w.-])(current-date|current-dateTime|current-time|doc|document|unparsed-text|unparsed-text-lines|" +
+        "collection|uri-collection|environment-variable|available-environment-variables)\\s*\\(");
+
+    /** Java classes whose static methods, callable as extension functions, always return the same result for the same arguments */
+    protected static final @Nonnull Set<String> deterministicJavaNamespaces = Set.of(
+        "java:com.offerready.xslt.xsltfunction.Base64", "java:org.apache.commons.codec.digest.DigestUtils");
     
     /** Thrown if an XSLT is applied which previously did not compile */
     public static class DocumentTemplateInvalidException extends Exception {
@@ -53,29 +104,184 @@ public class WeaklyCachedXsltTransformer {
         Document parseDocument() throws ConfigurationException;
     }
     
+    public record TransformerPoolStatistics(
+        long borrowCount, long createdCount, long waitCount, long totalWaitNanos, long maxWaitNanos
+    ) { }
+
+    /**
+     * Holds {@link XsltTransformer} objects which have been used and reset, and limits the number which exist at once.
+     * If all transformers are borrowed, a borrower waits until one is returned.
+     */
+    protected class TransformerPool {
+        protected final @Nonnull Semaphore permits;
+        protected final @Nonnull Queue<XsltTransformer> idle = new ConcurrentLinkedQueue<>();
+        protected final @Nonnull AtomicLong borrowCount = new AtomicLong(), createdCount = new AtomicLong(),
+            waitCount = new AtomicLong(), totalWaitNanos = new AtomicLong(), maxWaitNanos = new AtomicLong();
+
+        protected TransformerPool(int maximumSize) { permits = new Semaphore(maximumSize, true); }
+
+        @SneakyThrows(InterruptedException.class)
+        protected @Nonnull XsltTransformer borrow() {
+            borrowCount.incrementAndGet();
+            if ( ! permits.tryAcquire()) {
+                var start = System.nanoTime();
+                permits.acquire();
+                var waitNanos = System.nanoTime() - start;
+                waitCount.incrementAndGet();
+                totalWaitNanos.addAndGet(waitNanos);
+                maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+            }
+
+            try {
+                var result = idle.poll();
+                if (result != null) return result;
+                createdCount.incrementAndGet();
+                return executable.load();
+            }
+            catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        protected void giveBack(@Nonnull XsltTransformer transformer) {
+            try {
+                // Don't hold the last input and output in memory
+                transformer.clearParameters();
+                transformer.setInitialContextNode(null);
+                transformer.setDestination(null);
+                idle.add(transformer);
+            }
+            finally {
+                permits.release();
+            }
+        }
+
+        protected @Nonnull TransformerPoolStatistics getStatistics() {
+            return new TransformerPoolStatistics(borrowCount.get(), createdCount.get(),
+                waitCount.get(), totalWaitNanos.get(), maxWaitNanos.get());
+        }
+    }
+
     /**
-     * Can produce a {@link Transformer}.
-     *   <p>
-     * In principle a {@link Templates} can do this,
-     * however for the identity transformation there is a method from Saxon to produce an identity {@link Transformer}
-     * but not identity {@link Templates}.
+     * An {@link XsltTransformer} which is used for one transformation.
+     * Closing it returns it to the pool, if there is one, so it must not be used afterwards.
      */
-    protected interface XsltTransformerFactory {
-        Transformer newTransformer();
+    public class BorrowedTransformer implements AutoCloseable {
+        protected final @CheckForNull TransformerPool poolOrNull;
+        public final @Nonnull XsltTransformer transformer;
+
+        protected BorrowedTransformer(@CheckForNull TransformerPool poolOrNull, @Nonnull XsltTransformer transformer) {
+            this.poolOrNull = poolOrNull;
+            this.transformer = transformer;
+        }
+
+        @Override public void close() {
+            if (poolOrNull != null) poolOrNull.giveBack(transformer);
+        }
     }
   
     protected @CheckForNull String error = null;
 
-    /** After object is initialized, this is never null */
-    protected XsltTransformerFactory xsltTransformerFactory;
-    
-    protected class CompileJob implements Runnable {
-        protected @Nonnull String md5, nameForLogging;
+    /** After object is compiled, this is never null, unless {@link #error} is set */
+    protected XsltExecutable executable;
+
+    protected final @Nonnull AtomicBoolean compilationScheduled = new AtomicBoolean(false);
+    protected final @Nonnull AtomicBoolean compilationStarted = new AtomicBoolean(false);
+    protected final @Nonnull CompletableFuture<Void> compiled = new CompletableFuture<>();
+
+    /** Set until the compilation has started */
+    protected @CheckForNull CompileJob compileJob = null;
+
+    protected volatile @CheckForNull TransformerPool transformerPoolOrNull = null;
+
+    /** For example md5 of XSLT, see {@link Xslt#calculateCacheKey()} */
+    protected final @Nonnull String cacheKey;
+    protected final boolean deterministic;
+
+    /** Receives the duration of the compilation */
+    protected final @Nonnull DocumentGenerationMetrics metrics;
+
+    /** Creates an object which does not need compilation */
+    protected WeaklyCachedXsltTransformer(@Nonnull String cacheKey) {
+        this.cacheKey = cacheKey;
+        this.deterministic = true;
+        this.metrics = DocumentGenerationMetrics.none;
+        compilationStarted.set(true);
+        compiled.complete(null);
+    }
+
+    protected WeaklyCachedXsltTransformer(
+        @Nonnull String cacheKey, @Nonnull String nameForLogging, @Nonnull Document xslt, @Nonnull DocumentGenerationMetrics metrics
+    ) {
+        this.cacheKey = cacheKey;
+        this.metrics = metrics;
+        this.deterministic = isDeterministic(xslt.getDocumentElement());
+        compileJob = new CompileJob(nameForLogging, xslt);
+    }
+
+    /**
+     * @return false if the XSLT, or a module it includes or imports, declares a "java:" namespace for extension functions
+     *         (other than known ones), or calls a non-deterministic function; or if such a module cannot be read
+     */
+    protected static boolean isDeterministic(@Nonnull Element stylesheet) {
+        return isDeterministic(stylesheet, new HashSet<>());
+    }
+
+    /** @param visitedModules the modules already checked, so that each is read once, even if included from several places */
+    protected static boolean isDeterministic(@Nonnull Element element, @Nonnull Set<URI> visitedModules) {
+        if ("http://www.w3.org/1999/XSL/Transform".equals(element.getNamespaceURI())
+            && ("include".equals(element.getLocalName()) || "import".equals(element.getLocalName()))
+            && ! isModuleDeterministic(element, visitedModules)) return false;
+
+        var attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            var a = attributes.item(i);
+            if (a.getNodeName().matches("xmlns(:.*)?") && a.getNodeValue().startsWith("java:")
+                && ! deterministicJavaNamespaces.contains(a.getNodeValue())) return false;
+            if (nonDeterministicFunction.matcher(a.getNodeValue()).find()) return false;
+        }
+        for (var child = element.getFirstChild(); child != null; child = child.getNextSibling())
+            if (child instanceof Element e && ! isDeterministic(e, visitedModules)) return false;
+        return true;
+    }
+
+    /** @return false if the module referenced by the xsl:include or xsl:import is not deterministic, or cannot be read */
+    protected static boolean isModuleDeterministic(@Nonnull Element reference, @Nonnull Set<URI> visitedModules) {
+        try {
+            var base = reference.getBaseURI();
+            if (base == null) return false; // e.g. the XSLT was not parsed from a file, so the module cannot be found
+            var module = new URI(base).resolve(reference.getAttribute("href"));
+            if ( ! visitedModules.add(module)) return true;
+            return isDeterministic(DomParser.newDocumentBuilder().parse(module.toString()).getDocumentElement(), visitedModules);
+        }
+        catch (URISyntaxException | IllegalArgumentException | IOException | SAXException e) {
+            return false;
+        }
+    }
+
+    /** Compiles the XSLT in this thread, or waits for another thread which is already compiling it */
+    protected void compileIfNecessary() {
+        if (compilationStarted.compareAndSet(false, true)) {
+            try {
+                var job = compileJob;
+                compileJob = null;
+                job.compile();
+            }
+            finally {
+                compiled.complete(null);
+            }
+        }
+        else compiled.join();
+    }
+
+    protected class CompileJob {
+        protected @Nonnull String nameForLogging;
         protected @Nonnull Document xslt;
         
-        protected CompileJob(@Nonnull String m, @Nonnull String n, @Nonnull Document x) { md5 = m; nameForLogging = n; xslt = x; }
-        
-        public void run() {
+        protected CompileJob(@Nonnull String n, @Nonnull Document x) { nameForLogging = n; xslt = x; }
+
+        protected void compile() {
             var errorString = new StringBuilder();
             var errorListener = new ErrorListener() {
                 public void warning(TransformerException e) { errorString.append("\nERROR: ").append(e.getMessage()); }
@@ -83,15 +289,11 @@ public class WeaklyCachedXsltTransformer {
                 public void fatalError(TransformerException e) { errorString.append("\nFATAL: ").append(e.getMessage()); }
             };
 
+            var start = System.nanoTime();
             try (var ignored = new Timer("Compiling XSLT '" + nameForLogging + "'")) {
-                var transformerFactory = (TransformerFactoryImpl) TransformerFactory.newInstance(
-                    TransformerFactoryImpl.class.getName(), DocumentGenerator.class.getClassLoader());
-                transformerFactory.setErrorListener(errorListener);
-                var templates = transformerFactory.newTemplates(new DOMSource(xslt));
-                xsltTransformerFactory = new XsltTransformerFactory() {
-                    @SneakyThrows(TransformerConfigurationException.class)
-                    @Override public Transformer newTransformer() { return templates.newTransformer(); }
-                };
+                var compiler = processor.newXsltCompiler();
+                compiler.setErrorListener(errorListener);
+                executable = compiler.compile(new DOMSource(xslt));
             }
             catch (Exception exception) {
                 if (!errorString.isEmpty()) error = nameForLogging + ": " + errorString;
@@ -99,13 +301,26 @@ public class WeaklyCachedXsltTransformer {
                 
                 LoggerFactory.getLogger(getClass()).error(error, exception);
             }
-            
-            cache.put(md5, new WeakReference<>(WeaklyCachedXsltTransformer.this));
+            metrics.recordCompilation(nameForLogging, Duration.ofNanos(System.nanoTime() - start));
         }
     }
     
     public static class XsltCompilationThreads extends ThreadPool {
-        final Map<String, WeaklyCachedXsltTransformer> toCompileForXsltMd5 = new HashMap<>();
+        protected @Nonnull DocumentGenerationMetrics metrics = DocumentGenerationMetrics.none;
+
+        /**
+         * Where measurements are sent: compilations of XSLTs scheduled with these threads, lookups of compiled XSLTs,
+         * and transformations by {@link DocumentGenerator}s created with these threads.
+         * By default they are ignored.
+         */
+        public void setMetrics(@Nonnull DocumentGenerationMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        public @Nonnull DocumentGenerationMetrics getMetrics() {
+            return metrics;
+        }
+
         @Override public void execute() {
             try (var ignored = new Timer(threadNamePrefix)) {
                 super.execute(); 
@@ -113,48 +328,116 @@ public class WeaklyCachedXsltTransformer {
         }
     }
     
-    public synchronized static @Nonnull WeaklyCachedXsltTransformer getTransformerOrScheduleCompilation(
+    /**
+     * Returns the object for this XSLT from the cache, or creates it.
+     * If the XSLT has not been compiled yet, and its compilation has not been scheduled yet, a task is added to the threads
+     * which compiles it. Otherwise, no task is added, so that threads do not wait for a compilation scheduled elsewhere;
+     * the transformer waits for the compilation when it is used.
+     */
+    public static @Nonnull WeaklyCachedXsltTransformer getTransformerOrScheduleCompilation(
         @Nonnull XsltCompilationThreads threads, @Nonnull String nameForLogging, @Nonnull Xslt xslt
     ) throws ConfigurationException {
         var cacheKey = xslt.calculateCacheKey();
 
-        var ref = cache.get(cacheKey);
-        var result = (ref == null) ? null : ref.get();
-        if (result != null) return result;
-        
-        result = threads.toCompileForXsltMd5.get(cacheKey);
-        if (result != null) return result;
-        
-        result = new WeaklyCachedXsltTransformer();
-        threads.toCompileForXsltMd5.put(cacheKey, result);
-        threads.addTask(result.new CompileJob(cacheKey, nameForLogging, xslt.parseDocument()));
+        var created = new AtomicBoolean(false);
+        WeaklyCachedXsltTransformer result;
+        try {
+            result = cache.get(cacheKey, () -> {
+                created.set(true);
+                return new WeaklyCachedXsltTransformer(cacheKey, nameForLogging, xslt.parseDocument(), threads.metrics);
+            });
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof ConfigurationException c) throw c;
+            throw new RuntimeException(e.getCause());
+        }
+        catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException r) throw r;
+            throw e;
+        }
+
+        threads.metrics.recordCacheLookup("xslt", nameForLogging, ! created.get());
+        if ( ! result.compiled.isDone() && result.compilationScheduled.compareAndSet(false, true))
+            threads.addTask(result::compileIfNecessary);
         return result;
     }
 
+    /** @return the Saxon processor used to compile and execute all XSLTs */
+    public static @Nonnull Processor getSaxonProcessor() {
+        return processor;
+    }
+
+    @SneakyThrows(SaxonApiException.class)
+    protected static synchronized @Nonnull XsltExecutable getIdentityExecutable() {
+        if (identityExecutable == null)
+            identityExecutable = processor.newXsltCompiler().compile(new StreamSource(new StringReader(identityXslt)));
+        return identityExecutable;
+    }
+
     public static @Nonnull WeaklyCachedXsltTransformer getIdentityTransformer() {
-        var transformerFactory = (TransformerFactoryImpl) TransformerFactory.newInstance(
-            TransformerFactoryImpl.class.getName(), DocumentGenerator.class.getClassLoader());
-
-        var result = new WeaklyCachedXsltTransformer();
-        result.xsltTransformerFactory = new XsltTransformerFactory() {
-            @SneakyThrows(TransformerConfigurationException.class)
-            @Override public Transformer newTransformer() { return transformerFactory.newTransformer(); }
-        };
+        var result = new WeaklyCachedXsltTransformer("identity");
+        result.executable = getIdentityExecutable();
         return result;
     }
     
     public void assertValid() throws DocumentTemplateInvalidException {
+        compileIfNecessary();
         if (error != null) throw new DocumentTemplateInvalidException(error);
     }
 
     public static @Nonnull WeaklyCachedXsltTransformer newInvalidTransformer(@Nonnull String error) {
-        var result = new WeaklyCachedXsltTransformer();
+        var result = new WeaklyCachedXsltTransformer("invalid");
         result.error = error;
         return result;
     }
     
+    /** @return for example md5 of XSLT, see {@link Xslt#calculateCacheKey()} */
+    public @Nonnull String getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * @return false if the XSLT's output might differ between transformations with the same input and parameters, as it calls
+     *   Java extension functions, or functions such as current-dateTime() or document(), so its output should not be cached
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /** @return a JAXP {@link Transformer}, for callers not using {@link #borrowTransformer()} */
+    @SneakyThrows(TransformerConfigurationException.class)
     public Transformer newTransformer() throws DocumentTemplateInvalidException {
         assertValid();
-        return xsltTransformerFactory.newTransformer();
+        return new TemplatesImpl(executable).newTransformer();
+    }
+
+    /**
+     * Pool up to this number of {@link XsltTransformer} objects for {@link #borrowTransformer()}, which avoids creating
+     * a new {@link XsltTransformer} for each transformation.
+     * As at most this number of transformations can happen at once, further transformations wait.
+     * Objects of this class are shared by all users of the same XSLT, so this affects all of them.
+     * Setting a new size discards any existing pool and its statistics.
+     * @param maximumSize zero for no pool, which is the default
+     */
+    public void setTransformerPoolMaximumSize(int maximumSize) {
+        if (maximumSize < 0) throw new IllegalArgumentException("maximumSize=" + maximumSize);
+        transformerPoolOrNull = maximumSize == 0 ? null : new TransformerPool(maximumSize);
+    }
+
+    /** @return null if there is no pool */
+    public @CheckForNull TransformerPoolStatistics getTransformerPoolStatistics() {
+        var pool = transformerPoolOrNull;
+        return pool == null ? null : pool.getStatistics();
+    }
+
+    /**
+     * Returns an {@link XsltTransformer} from the pool, waiting if necessary, or a new one if there is no pool.
+     * The caller must close the result after the transformation.
+     */
+    public @Nonnull BorrowedTransformer borrowTransformer() throws DocumentTemplateInvalidException {
+        assertValid();
+        var pool = transformerPoolOrNull;
+        if (pool == null) return new BorrowedTransformer(null, executable.load());
+        return new BorrowedTransformer(pool, pool.borrow());
     }
 }
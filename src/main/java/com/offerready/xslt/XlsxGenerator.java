@@ -0,0 +1,233 @@
+package com.offerready.xslt;
+
+import com.databasesandlife.util.Timer;
+import com.offerready.xslt.destination.ChunkedBuffer;
+import lombok.SneakyThrows;
+import org.xml.sax.SAXException;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Converts HTML tables to an Excel file in the XLSX format, with the same rules as {@link ExcelGenerator},
+ * which writes the older XLS format.
+ *    <p>
+ * XLS files are limited to 65,536 rows, and are held in memory until they are complete.
+ * This class writes each row as soon as it ends (see {@link ExcelGenerator#setStreamRows(boolean)}),
+ * so the memory used does not depend on the number of rows:
+ * <ul>
+ * <li>Text is written within each cell, rather than to a table of shared strings, which would be held in memory.
+ * <li>The column widths, known only after the last row, come before the rows in the file.
+ * Therefore the rows are written to a {@link ChunkedBuffer}, which stores large documents in a temporary file,
+ * and are copied to the file at the end.
+ * </ul>
+ */
+public class XlsxGenerator extends ExcelGenerator {
+
+    protected static final int maximumRows = 1_048_576;
+    protected static final long spillThresholdBytes = 1024 * 1024;
+    protected static final @Nonnull String xmlDeclaration = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+    protected static final @Nonnull String spreadsheetNamespace = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    protected static final @Nonnull String relationshipsNamespace = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    protected static final @Nonnull String packageRelationshipsNamespace = "http://schemas.openxmlformats.org/package/2006/relationships";
+
+    protected final @Nonnull OutputStream xlsx;
+    protected final @Nonnull ChunkedBuffer sheetData = new ChunkedBuffer(spillThresholdBytes, null);
+    protected final @Nonnull ChunkedBuffer mergeCells = new ChunkedBuffer(spillThresholdBytes, null);
+    protected final @Nonnull Writer sheetDataWriter = new OutputStreamWriter(sheetData, UTF_8);
+    protected final @Nonnull Writer mergeCellsWriter = new OutputStreamWriter(mergeCells, UTF_8);
+
+    /** Index in the "cellXfs" of the styles; index 0 is the default style, which is not in this map */
+    protected final @Nonnull Map<CellAndNumberFormat, Integer> styleIndexes = new LinkedHashMap<>();
+
+    /** @param xlsx is closed after transformation */
+    public XlsxGenerator(@Nonnull InputDecimalSeparator inputDecimalSeparator, @Nonnull OutputStream xlsx) {
+        super(inputDecimalSeparator);
+        this.xlsx = xlsx;
+        this.streamRows = true;
+    }
+
+    /** @return for example "A" for column 0, "AA" for column 26 */
+    protected static @Nonnull String getColumnName(int colIdx) {
+        var result = new StringBuilder();
+        for (int i = colIdx + 1; i > 0; i = (i - 1) / 26) result.insert(0, (char) ('A' + (i - 1) % 26));
+        return result.toString();
+    }
+
+    protected static @Nonnull String escapeXml(@Nonnull String str) {
+        return str.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    protected int getStyleIndex(@Nonnull CellAndNumberFormat format) {
+        return styleIndexes.computeIfAbsent(format, f -> styleIndexes.size() + 1);
+    }
+
+    @SneakyThrows(IOException.class)
+    @Override protected void writeRowToExcel(@Nonnull List<CellFromHtml> row) {
+        if (nextRowInExcel >= maximumRows) throw new RuntimeException("More than " + maximumRows + " rows cannot be written to XLSX");
+
+        var rowName = Integer.toString(nextRowInExcel + 1);
+        sheetDataWriter.write("<row r=\"" + rowName + "\">");
+        int colIdx = 0;
+        for (var cell : row) {
+            var cellName = getColumnName(colIdx) + rowName;
+            var cellValue = cell.forceText ? cell.string.toString() : parseString(cell.string.toString());
+            if (cellValue instanceof Double d && Double.isFinite(d)) {
+                var decimalPlaces = inputDecimalSeparator.determineDecimalPlaces(cell.string.toString());
+                var style = getStyleIndex(new CellAndNumberFormat(cell.format, getNumberFormat(decimalPlaces)));
+                sheetDataWriter.write("<c r=\"" + cellName + "\" s=\"" + style + "\"><v>" + d + "</v></c>");
+                recordColumnWidth(colIdx, String.format("%."+decimalPlaces+"f", d).length());
+            } else {
+                var s = cellValue.toString();
+                var style = getStyleIndex(new CellAndNumberFormat(cell.format, null));
+                sheetDataWriter.write("<c r=\"" + cellName + "\" s=\"" + style + "\" t=\"inlineStr\"><is><t xml:space=\"preserve\">");
+                sheetDataWriter.write(escapeXml(s));
+                sheetDataWriter.write("</t></is></c>");
+                recordColumnWidth(colIdx, s.length());
+            }
+
+            if (cell.colspan > 1)
+                mergeCellsWriter.write("<mergeCell ref=\"" + cellName + ":" + getColumnName(colIdx + cell.colspan - 1) + rowName + "\"/>");
+            colIdx += cell.colspan;
+        }
+        sheetDataWriter.write("</row>");
+        nextRowInExcel++;
+    }
+
+    protected @Nonnull String newStylesXml() {
+        var numberFormatIds = new LinkedHashMap<String, Integer>();
+        var fonts = new LinkedHashMap<String, Integer>();
+        fonts.put("<font><sz val=\"10\"/><name val=\"Arial\"/></font>", 0);
+        var cellXfs = new ArrayList<String>();
+        cellXfs.add("<xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>");
+
+        for (var style : styleIndexes.keySet()) {
+            var numberFormatId = style.numberFormat() == null ? 0
+                : numberFormatIds.computeIfAbsent(style.numberFormat(), f -> 164 + numberFormatIds.size()); // 164 is the first custom ID
+            var font = new StringBuilder("<font>");
+            if (style.format().isBold) font.append("<b/>");
+            if (style.format().color != null) {
+                var rgb = style.format().color.toExcelColour().getDefaultRGB();
+                font.append(String.format("<color rgb=\"FF%02X%02X%02X\"/>", rgb.getRed(), rgb.getGreen(), rgb.getBlue()));
+            }
+            font.append("<sz val=\"10\"/><name val=\"Arial\"/></font>");
+            var fontId = fonts.computeIfAbsent(font.toString(), f -> fonts.size());
+            var borderId = style.format().hasTopBorder ? 1 : 0;
+            cellXfs.add("<xf numFmtId=\"" + numberFormatId + "\" fontId=\"" + fontId + "\" fillId=\"0\" borderId=\"" + borderId + "\" xfId=\"0\"" +
+                " applyNumberFormat=\"1\" applyFont=\"1\" applyBorder=\"1\"" +
+                (style.format().isCentered ? " applyAlignment=\"1\"><alignment horizontal=\"center\"/></xf>" : "/>"));
+        }
+
+        var result = new StringBuilder(xmlDeclaration);
+        result.append("<styleSheet xmlns=\"").append(spreadsheetNamespace).append("\">");
+        if ( ! numberFormatIds.isEmpty()) {
+            result.append("<numFmts count=\"").append(numberFormatIds.size()).append("\">");
+            for (var e : numberFormatIds.entrySet())
+                result.append("<numFmt numFmtId=\"").append(e.getValue()).append("\" formatCode=\"").append(escapeXml(e.getKey())).append("\"/>");
+            result.append("</numFmts>");
+        }
+        result.append("<fonts count=\"").append(fonts.size()).append("\">");
+        for (var f : fonts.keySet()) result.append(f);
+        result.append("</fonts>");
+        result.append("<fills count=\"2\"><fill><patternFill patternType=\"none\"/></fill><fill><patternFill patternType=\"gray125\"/></fill></fills>");
+        result.append("<borders count=\"2\">");
+        result.append("<border><left/><right/><top/><bottom/><diagonal/></border>");
+        result.append("<border><left/><right/><top style=\"thin\"><color auto=\"1\"/></top><bottom/><diagonal/></border>");
+        result.append("</borders>");
+        result.append("<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>");
+        result.append("<cellXfs count=\"").append(cellXfs.size()).append("\">");
+        for (var xf : cellXfs) result.append(xf);
+        result.append("</cellXfs>");
+        result.append("<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>");
+        result.append("</styleSheet>");
+        return result.toString();
+    }
+
+    protected void writeEntry(@Nonnull ZipOutputStream zip, @Nonnull String name, @Nonnull String contents) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(contents.getBytes(UTF_8));
+        zip.closeEntry();
+    }
+
+    protected void writeSheet(@Nonnull ZipOutputStream zip) throws IOException {
+        sheetDataWriter.flush();
+        mergeCellsWriter.flush();
+
+        zip.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+        var header = new StringBuilder(xmlDeclaration);
+        header.append("<worksheet xmlns=\"").append(spreadsheetNamespace).append("\" xmlns:r=\"").append(relationshipsNamespace).append("\">");
+        var cols = new StringBuilder();
+        for (int colIdx = 0; colIdx < maxCharsSeenInColumn.size(); colIdx++) {
+            int length = maxCharsSeenInColumn.get(colIdx);
+            if (length > 0) cols.append("<col min=\"").append(colIdx + 1).append("\" max=\"").append(colIdx + 1)
+                .append("\" width=\"").append((int) (length*1.5)).append("\" customWidth=\"1\"/>");   // *1.5 as ExcelGenerator
+        }
+        if (cols.length() > 0) header.append("<cols>").append(cols).append("</cols>");
+        header.append("<sheetData>");
+        zip.write(header.toString().getBytes(UTF_8));
+        sheetData.writeTo(zip);
+        zip.write("</sheetData>".getBytes(UTF_8));
+        if (mergeCells.size() > 0) {
+            zip.write("<mergeCells>".getBytes(UTF_8));
+            mergeCells.writeTo(zip);
+            zip.write("</mergeCells>".getBytes(UTF_8));
+        }
+        zip.write("</worksheet>".getBytes(UTF_8));
+        zip.closeEntry();
+    }
+
+    /** Releases the rows written so far, and their temporary file, if the document cannot be completed, e.g. as the XSLT failed */
+    public void abort() {
+        sheetData.release();
+        mergeCells.release();
+    }
+
+    @Override public void startDocument() {
+        timer = new Timer("Create XLSX from XML");
+    }
+
+    @Override public void endDocument() throws SAXException {
+        try (var zip = new ZipOutputStream(xlsx)) {
+            writeEntry(zip, "[Content_Types].xml", xmlDeclaration +
+                "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">" +
+                "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>" +
+                "<Default Extension=\"xml\" ContentType=\"application/xml\"/>" +
+                "<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>" +
+                "<Override PartName=\"/xl/worksheets/sheet1.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>" +
+                "<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>" +
+                "</Types>");
+            writeEntry(zip, "_rels/.rels", xmlDeclaration +
+                "<Relationships xmlns=\"" + packageRelationshipsNamespace + "\">" +
+                "<Relationship Id=\"rId1\" Type=\"" + relationshipsNamespace + "/officeDocument\" Target=\"xl/workbook.xml\"/>" +
+                "</Relationships>");
+            writeEntry(zip, "xl/workbook.xml", xmlDeclaration +
+                "<workbook xmlns=\"" + spreadsheetNamespace + "\" xmlns:r=\"" + relationshipsNamespace + "\">" +
+                "<sheets><sheet name=\"Report\" sheetId=\"1\" r:id=\"rId1\"/></sheets>" +
+                "</workbook>");
+            writeEntry(zip, "xl/_rels/workbook.xml.rels", xmlDeclaration +
+                "<Relationships xmlns=\"" + packageRelationshipsNamespace + "\">" +
+                "<Relationship Id=\"rId1\" Type=\"" + relationshipsNamespace + "/worksheet\" Target=\"worksheets/sheet1.xml\"/>" +
+                "<Relationship Id=\"rId2\" Type=\"" + relationshipsNamespace + "/styles\" Target=\"styles.xml\"/>" +
+                "</Relationships>");
+            writeEntry(zip, "xl/styles.xml", newStylesXml());
+            writeSheet(zip);
+        }
+        catch (IOException e) { throw new SAXException(e); }
+        finally {
+            sheetData.release();
+            mergeCells.release();
+        }
+        timer.close();
+    }
+}
@@ -1,16 +1,22 @@
 package com.offerready.xslt;
 
 import com.databasesandlife.util.gwtsafe.ConfigurationException;
-import lombok.RequiredArgsConstructor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XsltTransformer;
 import org.w3c.dom.Element;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 
 import static com.databasesandlife.util.DomParser.*;
+import static java.util.Collections.unmodifiableMap;
 
 /**
  * These are passed to the XSLT processor when the XSLT is executed.
@@ -22,12 +28,44 @@ import static com.databasesandlife.util.DomParser.*;
  * For each <code>&lt;placeholder-value&gt;</code> element in the config file, there may be additional ones with the same
  * "placeholder-name", but with a "language" attribute, for example 
  * <code>&lt;placeholder-value placeholder-name="CostPerUserAlertTreshold" value="10" language="de"/&gt;</code>.
+ *    <p>
+ * The parameters for each language, merged with the default ones, are computed once when this object is created,
+ * both as strings and as Saxon values.
  */
-@RequiredArgsConstructor
 public class XsltParameters implements Serializable {
+
+    /** The parameters for one language, as Saxon values, ready to be applied to a transformation */
+    public static class SaxonParameters {
+        protected final @Nonnull QName[] names;
+        protected final @Nonnull XdmValue[] values;
+
+        protected SaxonParameters(@Nonnull Map<String, String> params) {
+            names = new QName[params.size()];
+            values = new XdmValue[params.size()];
+            var i = 0;
+            for (var e : params.entrySet()) {
+                names[i] = QName.fromClarkName(e.getKey());
+                values[i] = new XdmAtomicValue(e.getValue());
+                i++;
+            }
+        }
+
+        public void applyTo(@Nonnull XsltTransformer transformer) {
+            for (int i = 0; i < names.length; i++) transformer.setParameter(names[i], values[i]);
+        }
+    }
     
     /** From language to a set of params. The language "" (empty string) is the default */
     final protected Map<String, Map<String, String>> paramsForLanguage;
+
+    /** From language to the default params merged with the language's params */
+    protected transient Map<String, Map<String, String>> mergedParamsForLanguage;
+    protected transient Map<String, SaxonParameters> saxonParamsForLanguage;
+
+    public XsltParameters(@Nonnull Map<String, Map<String, String>> paramsForLanguage) {
+        this.paramsForLanguage = paramsForLanguage;
+        resolve();
+    }
     
     public XsltParameters(@Nonnull Element outputDefnElement) 
     throws ConfigurationException {
@@ -40,12 +78,37 @@ public class XsltParameters implements Serializable {
             paramsForLanguage.putIfAbsent(language, new HashMap<>());
             paramsForLanguage.get(language).put(key, value);
         }
+        resolve();
     }
-    
+
+    protected void resolve() {
+        var defaults = paramsForLanguage.getOrDefault("", Map.of());
+        mergedParamsForLanguage = new HashMap<>();
+        saxonParamsForLanguage = new HashMap<>();
+        mergedParamsForLanguage.put("", unmodifiableMap(new HashMap<>(defaults)));
+        for (var e : paramsForLanguage.entrySet()) {
+            var merged = new HashMap<>(defaults);
+            merged.putAll(e.getValue());
+            mergedParamsForLanguage.put(e.getKey(), unmodifiableMap(merged));
+        }
+        for (var e : mergedParamsForLanguage.entrySet())
+            saxonParamsForLanguage.put(e.getKey(), new SaxonParameters(e.getValue()));
+    }
+
+    private void readObject(@Nonnull ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        resolve();
+    }
+
+    /** @return unmodifiable map of the params for the language, or the default params if the language is null or unknown */
     public @Nonnull Map<String, String> get(@CheckForNull String language) {
-        var result = new HashMap<>(paramsForLanguage.get(""));
-        var lang = paramsForLanguage.get(language);
-        if (lang != null) result.putAll(lang);
-        return result;
+        var result = mergedParamsForLanguage.get(language == null ? "" : language);
+        return result == null ? mergedParamsForLanguage.get("") : result;
+    }
+
+    /** @return the params for the language, or the default params if the language is null or unknown */
+    public @Nonnull SaxonParameters getSaxonParameters(@CheckForNull String language) {
+        var result = saxonParamsForLanguage.get(language == null ? "" : language);
+        return result == null ? saxonParamsForLanguage.get("") : result;
     }
 }
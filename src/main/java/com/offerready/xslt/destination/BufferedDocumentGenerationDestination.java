@@ -1,23 +1,58 @@
 package com.offerready.xslt.destination;
 
 import lombok.Getter;
+import lombok.SneakyThrows;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
 
 /**
  * Rather than streaming the output, this stores the result in itself, so it can be accessed multiple times.
+ *    <p>
+ * The result is stored in a {@link ChunkedBuffer}, so large results are stored in a temporary file,
+ * and the memory used by all such objects together may be limited with {@link ChunkedBuffer#setMemoryBudget(long)}.
  */
 public class BufferedDocumentGenerationDestination implements DocumentGenerationDestination {
 
     protected @Getter String contentType;
     protected @Getter @CheckForNull String filenameOrNull = null;
-    protected @Getter ByteArrayOutputStream body = null;
+    protected @Getter @CheckForNull ChunkedBuffer buffer = null;
+    protected long spillThresholdBytes = 10 * 1024 * 1024;
+    protected @CheckForNull File temporaryDirectoryOrNull = null;
+
+    /** Results larger than this are stored in a temporary file, by default 10 MB */
+    public void setSpillThresholdBytes(long spillThresholdBytes) { this.spillThresholdBytes = spillThresholdBytes; }
+
+    /** Where temporary files are created, or null for the system default */
+    public void setTemporaryDirectory(@CheckForNull File dir) { this.temporaryDirectoryOrNull = dir; }
 
     @Override public void setContentType(@Nonnull String contentType) { this.contentType = contentType; }
     @Override public void setContentDispositionToDownload(@CheckForNull String filename) { this.filenameOrNull = filename; }
-    @Override public @Nonnull OutputStream getOutputStream() { return body = new ByteArrayOutputStream(); }
-    
+
+    @Override public @Nonnull OutputStream getOutputStream() {
+        if (buffer != null) buffer.release();
+        return buffer = new ChunkedBuffer(spillThresholdBytes, temporaryDirectoryOrNull);
+    }
+
+    /**
+     * @return a copy of the result, or null if there is none
+     * @deprecated copies the whole result into memory; use {@link #getBuffer()}
+     */
+    @Deprecated
+    @SneakyThrows(IOException.class)
+    public @CheckForNull ByteArrayOutputStream getBody() {
+        if (buffer == null) return null;
+        var result = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, buffer.size()));
+        buffer.writeTo(result);
+        return result;
+    }
+
+    /** Releases the memory or temporary file holding the result, once it is no longer needed, see {@link ChunkedBuffer#release()} */
+    public void release() {
+        if (buffer != null) buffer.release();
+    }
 }
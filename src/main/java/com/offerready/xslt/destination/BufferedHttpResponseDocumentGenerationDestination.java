@@ -2,10 +2,10 @@ package com.offerready.xslt.destination;
 
 import lombok.Getter;
 import lombok.SneakyThrows;
-import org.apache.commons.io.IOUtils;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.net.URL;
@@ -35,15 +35,30 @@ public class BufferedHttpResponseDocumentGenerationDestination extends BufferedD
         super.setContentDispositionToDownload(filename);
     }
 
+    /** Sends the result uncompressed, with its "Content-Length" */
+    public void deliver(@Nonnull HttpServletResponse response) {
+        deliver(response, null, null);
+    }
+
+    /**
+     * Sends the result, compressed if the request accepts compression and the content type is not already compressed.
+     * The result is compressed before it is sent, so that its "Content-Length" can be set.
+     */
+    public void deliver(@Nonnull HttpServletRequest request, @Nonnull HttpServletResponse response, @Nonnull HttpCompression compression) {
+        deliver(response, request, compression);
+    }
+
     @SuppressWarnings("deprecation") // There's no other way to do setStatus(code, phrase)
     @SneakyThrows(IOException.class)
-    public void deliver(@Nonnull HttpServletResponse response) {
+    protected void deliver(
+        @Nonnull HttpServletResponse response, @CheckForNull HttpServletRequest requestOrNull, @CheckForNull HttpCompression compressionOrNull
+    ) {
         if (redirectUrl != null) {
             response.sendRedirect(redirectUrl.toExternalForm());
             return;
         }
 
-        if (body == null) {
+        if (buffer == null) {
             if (reasonPhrase == null) response.sendError(statusCode);
             else response.sendError(statusCode, reasonPhrase);
         } else {
@@ -56,7 +71,27 @@ public class BufferedHttpResponseDocumentGenerationDestination extends BufferedD
                 response.setHeader("content-disposition", "attachment; filename=\"" + filenameOrNull + "\"");
             }
 
-            IOUtils.write(body.toByteArray(), response.getOutputStream());
+            var compressible = compressionOrNull != null && compressionOrNull.isCompressible(contentType);
+            if (compressible) response.addHeader("Vary", "Accept-Encoding");
+            var encoding = compressible ? compressionOrNull.negotiate(requestOrNull) : null;
+
+            var compressed = encoding == null ? null : new ChunkedBuffer(spillThresholdBytes, temporaryDirectoryOrNull);
+            try {
+                if (compressed != null)
+                    try (var out = compressionOrNull.newCompressingStream(encoding, compressed)) { buffer.writeTo(out); }
+
+                if (compressed != null && compressed.size() < buffer.size()) { // Very short bodies get longer
+                    response.setHeader("Content-Encoding", encoding.name());
+                    response.setContentLengthLong(compressed.size());
+                    compressed.writeTo(response.getOutputStream());
+                } else {
+                    response.setContentLengthLong(buffer.size());
+                    buffer.writeTo(response.getOutputStream());
+                }
+            }
+            finally {
+                if (compressed != null) compressed.release();
+            }
         }
     }
 }
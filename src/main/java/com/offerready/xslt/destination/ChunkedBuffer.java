@@ -0,0 +1,251 @@
+package com.offerready.xslt.destination;
+
+import lombok.SneakyThrows;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.Cleaner;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores bytes written to it, like a {@link ByteArrayOutputStream}, but
+ * <ul>
+ * <li>in fixed-size chunks, so the bytes are never copied as the buffer grows,
+ * and are read via {@link #writeTo(OutputStream)} or {@link #newInputStream()} without being copied,
+ * <li>in a temporary file, once there are more than a threshold number of bytes,
+ * <li>or once all buffers together would use more memory than the budget set by {@link #setMemoryBudget(long)}.
+ * This means that many large documents, for example PDFs, generated at once, do not exhaust the heap.
+ * </ul>
+ *    <p>
+ * Once the buffer is closed, its temporary file is no longer open for writing, and the bytes may still be read.
+ * Memory is counted against the budget until {@link #release()} is called, or the buffer is garbage-collected.
+ * Chunks are then reused by other buffers.
+ * Do not call {@link #release()} while the bytes are still being read.
+ */
+public class ChunkedBuffer extends OutputStream {
+
+    protected static final int chunkSize = 16 * 1024;
+    protected static final int maximumPooledChunks = 256;
+
+    protected static final @Nonnull Cleaner cleaner = Cleaner.create();
+    protected static final @Nonnull ConcurrentLinkedQueue<byte[]> pooledChunks = new ConcurrentLinkedQueue<>();
+    protected static final @Nonnull AtomicInteger pooledChunkCount = new AtomicInteger();
+    protected static final @Nonnull AtomicLong memoryInUse = new AtomicLong();
+    protected static volatile long memoryBudget = Long.MAX_VALUE;
+
+    /** The memory and file of a buffer, which are released even if the buffer is garbage-collected without being released */
+    protected static class Storage implements Runnable {
+        protected final @Nonnull List<byte[]> chunks = new ArrayList<>();
+        protected @CheckForNull File fileOrNull = null;
+        protected @CheckForNull OutputStream fileOutputOrNull = null;
+
+        protected void releaseChunks() {
+            for (var c : chunks) {
+                memoryInUse.addAndGet(-c.length);
+                if (pooledChunkCount.incrementAndGet() <= maximumPooledChunks) pooledChunks.add(c);
+                else pooledChunkCount.decrementAndGet();
+            }
+            chunks.clear();
+        }
+
+        @Override public void run() {
+            releaseChunks();
+            try {
+                if (fileOutputOrNull != null) fileOutputOrNull.close();
+                if (fileOrNull != null) Files.deleteIfExists(fileOrNull.toPath());
+            }
+            catch (IOException e) { LoggerFactory.getLogger(ChunkedBuffer.class).warn("Cannot delete temporary file", e); }
+        }
+    }
+
+    protected final long spillThresholdBytes;
+    protected final @CheckForNull File temporaryDirectoryOrNull;
+    protected final @Nonnull Storage storage = new Storage();
+    protected final @Nonnull Cleaner.Cleanable cleanable;
+    protected long size = 0;
+    protected boolean closed = false;
+
+    /**
+     * @param spillThresholdBytes once there are more bytes than this, they are stored in a temporary file
+     * @param temporaryDirectoryOrNull where the temporary file is created, or null for the system default
+     */
+    public ChunkedBuffer(long spillThresholdBytes, @CheckForNull File temporaryDirectoryOrNull) {
+        this.spillThresholdBytes = spillThresholdBytes;
+        this.temporaryDirectoryOrNull = temporaryDirectoryOrNull;
+        this.cleanable = cleaner.register(this, storage);
+    }
+
+    public ChunkedBuffer() {
+        this(Long.MAX_VALUE, null);
+    }
+
+    /** The total memory used by all buffers, before further buffers store their bytes in temporary files */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    /** @return the memory currently used by all buffers */
+    public static long getMemoryInUse() {
+        return memoryInUse.get();
+    }
+
+    /** @return a chunk, or null if the memory budget does not allow another chunk */
+    protected static @CheckForNull byte[] allocateChunk() {
+        if (memoryInUse.addAndGet(chunkSize) > memoryBudget) {
+            memoryInUse.addAndGet(-chunkSize);
+            return null;
+        }
+        var pooled = pooledChunks.poll();
+        if (pooled == null) return new byte[chunkSize];
+        pooledChunkCount.decrementAndGet();
+        return pooled;
+    }
+
+    protected void spill() throws IOException {
+        storage.fileOrNull = File.createTempFile("document-", ".tmp", temporaryDirectoryOrNull);
+        storage.fileOutputOrNull = new BufferedOutputStream(new FileOutputStream(storage.fileOrNull), chunkSize);
+        writeChunksTo(storage.fileOutputOrNull);
+        storage.releaseChunks();
+    }
+
+    @Override public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Buffer has been closed");
+        while (len > 0) {
+            if (storage.fileOutputOrNull == null && size + len > spillThresholdBytes) spill();
+            if (storage.fileOutputOrNull != null) {
+                storage.fileOutputOrNull.write(b, off, len);
+                size += len;
+                return;
+            }
+
+            if (size == (long) storage.chunks.size() * chunkSize) {
+                var chunk = allocateChunk();
+                if (chunk == null) { spill(); continue; }
+                storage.chunks.add(chunk);
+            }
+
+            var used = (int) (size % chunkSize);
+            var count = Math.min(len, chunkSize - used);
+            System.arraycopy(b, off, storage.chunks.get(storage.chunks.size() - 1), used, count);
+            size += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override public void flush() throws IOException {
+        if (storage.fileOutputOrNull != null) storage.fileOutputOrNull.flush();
+    }
+
+    /** Closes the temporary file, if any, so that no file descriptor is held while the bytes are waiting to be read */
+    @Override public void close() throws IOException {
+        closed = true;
+        if (storage.fileOutputOrNull != null) {
+            storage.fileOutputOrNull.close();
+            storage.fileOutputOrNull = null;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /** @return true if the bytes are stored in a temporary file */
+    public boolean isSpilled() {
+        return storage.fileOrNull != null;
+    }
+
+    protected void writeChunksTo(@Nonnull OutputStream out) throws IOException {
+        for (int i = 0; i < storage.chunks.size(); i++)
+            out.write(storage.chunks.get(i), 0, (int) Math.min(chunkSize, size - (long) i * chunkSize));
+    }
+
+    /** Writes all the bytes to the stream, which is not closed */
+    public void writeTo(@Nonnull OutputStream out) throws IOException {
+        if (storage.fileOrNull == null) writeChunksTo(out);
+        else try (var in = newInputStream()) { in.transferTo(out); }
+    }
+
+    /** @return a stream of all the bytes written so far, which are not copied; may be called any number of times */
+    @SneakyThrows(IOException.class)
+    public @Nonnull InputStream newInputStream() {
+        if (storage.fileOrNull != null) {
+            flush();
+            return new FileInputStream(storage.fileOrNull);
+        }
+
+        var chunks = List.copyOf(storage.chunks);
+        var length = size;
+        return new InputStream() {
+            protected final @Nonnull ChunkedBuffer buffer = ChunkedBuffer.this; // Chunks are not released while being read
+            protected long position = 0;
+
+            @Override public int read() {
+                if (position >= length) return -1;
+                var result = chunks.get((int) (position / chunkSize))[(int) (position % chunkSize)] & 0xFF;
+                position++;
+                return result;
+            }
+
+            @Override public int read(@Nonnull byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (position >= length) return -1;
+                var offsetInChunk = (int) (position % chunkSize);
+                var count = (int) Math.min(len, Math.min(chunkSize - offsetInChunk, length - position));
+                System.arraycopy(chunks.get((int) (position / chunkSize)), offsetInChunk, b, off, count);
+                position += count;
+                return count;
+            }
+
+            @Override public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, length - position);
+            }
+        };
+    }
+
+    /** @return a copy of the bytes; prefer {@link #writeTo(OutputStream)} or {@link #newInputStream()} */
+    @SneakyThrows(IOException.class)
+    public @Nonnull byte[] toByteArray() {
+        var result = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, size));
+        writeTo(result);
+        return result.toByteArray();
+    }
+
+    /** @return the bytes decoded with the platform's default charset, as {@link ByteArrayOutputStream#toString()} does */
+    @Override public @Nonnull String toString() {
+        return new String(toByteArray(), Charset.defaultCharset());
+    }
+
+    public @Nonnull String toString(@Nonnull Charset charset) {
+        return new String(toByteArray(), charset);
+    }
+
+    public @Nonnull String toString(@Nonnull String charsetName) throws UnsupportedEncodingException {
+        return new String(toByteArray(), charsetName);
+    }
+
+    /** Returns the memory to the budget, and deletes the temporary file; the bytes may no longer be read */
+    public void release() {
+        cleanable.clean();
+    }
+}
@@ -0,0 +1,60 @@
+package com.offerready.xslt.destination;
+
+import lombok.SneakyThrows;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams the result of a transformation to an HTTP response, like {@link StreamingHttpResponseDocumentGenerationDestination},
+ * compressing it as it is produced, if the client accepts compression and the content type is not already compressed.
+ * As the length of the result is not known until it is complete, no "Content-Length" is set; to set it, use
+ * {@link BufferedHttpResponseDocumentGenerationDestination} instead.
+ */
+public class CompressingHttpResponseDocumentGenerationDestination implements DocumentGenerationDestination {
+
+    protected final @Nonnull StreamingHttpResponseDocumentGenerationDestination destination;
+    protected final @Nonnull HttpServletRequest request;
+    protected final @Nonnull HttpCompression compression;
+    protected @CheckForNull String contentTypeOrNull = null;
+
+    public CompressingHttpResponseDocumentGenerationDestination(
+        @Nonnull StreamingHttpResponseDocumentGenerationDestination destination, @Nonnull HttpServletRequest request,
+        @Nonnull HttpCompression compression
+    ) {
+        this.destination = destination;
+        this.request = request;
+        this.compression = compression;
+    }
+
+    public CompressingHttpResponseDocumentGenerationDestination(
+        @Nonnull StreamingHttpResponseDocumentGenerationDestination destination, @Nonnull HttpServletRequest request
+    ) {
+        this(destination, request, new HttpCompression());
+    }
+
+    @Override public void setContentType(@Nonnull String contentType) {
+        destination.setContentType(contentType);
+        this.contentTypeOrNull = contentType;
+    }
+
+    @Override public void setContentDispositionToDownload(@CheckForNull String filename) {
+        destination.setContentDispositionToDownload(filename);
+    }
+
+    @SneakyThrows(IOException.class)
+    @Override public @Nonnull OutputStream getOutputStream() {
+        if ( ! compression.isCompressible(contentTypeOrNull)) return destination.getOutputStream();
+
+        var response = destination.response;
+        response.addHeader("Vary", "Accept-Encoding");
+        var encoding = compression.negotiate(request);
+        if (encoding == null) return destination.getOutputStream();
+
+        response.setHeader("Content-Encoding", encoding.name());
+        return compression.newCompressingStream(encoding, destination.getOutputStream());
+    }
+}
@@ -10,7 +10,6 @@ import lombok.SneakyThrows;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -23,7 +22,7 @@ public class EmailPartDocumentDestination extends BufferedDocumentGenerationDest
     public static @Nonnull BodyPart newMimeBodyForDestination(BufferedDocumentGenerationDestination destination) {
         var dataSource = new DataSource() {
             @Override public String getContentType() { return destination.getContentType(); }
-            @Override public InputStream getInputStream() { return new ByteArrayInputStream(destination.getBody().toByteArray()); }
+            @Override public InputStream getInputStream() { return destination.getBuffer().newInputStream(); }
             @Override public String getName() { return destination.getFilenameOrNull(); }
             @Override public OutputStream getOutputStream() { throw new RuntimeException("unreachable"); }
         };
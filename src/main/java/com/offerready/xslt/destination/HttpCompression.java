@@ -0,0 +1,110 @@
+package com.offerready.xslt.destination;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses documents sent to an HTTP client, if the client accepts gzip or deflate compression, according to
+ * its "Accept-Encoding" header.
+ * See {@link CompressingHttpResponseDocumentGenerationDestination} and
+ * {@link BufferedHttpResponseDocumentGenerationDestination#deliver(HttpServletRequest, HttpServletResponse, HttpCompression)}.
+ *    <p>
+ * Documents whose content type is already compressed, such as PDF, binary Excel and images, are not compressed.
+ */
+public class HttpCompression {
+
+    public enum ContentEncoding { gzip, deflate }
+
+    protected int level = Deflater.DEFAULT_COMPRESSION;
+    protected int bufferSize = 8 * 1024;
+    protected final @Nonnull Set<String> uncompressedContentTypes = new HashSet<>(Set.of(
+        "application/pdf", "application/ms-excel", "application/vnd.ms-excel",
+        "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+        "application/zip", "application/gzip", "application/octet-stream"));
+
+    /** @param level from 1 (fastest) to 9 (smallest), default {@link Deflater#DEFAULT_COMPRESSION} */
+    public @Nonnull HttpCompression setLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9))
+            throw new IllegalArgumentException("Compression level " + level + " invalid");
+        this.level = level;
+        return this;
+    }
+
+    /** @param bufferSize the number of bytes compressed at once, default 8 KB */
+    public @Nonnull HttpCompression setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /** Documents of this content type, for example "application/x-custom-zip", are not compressed */
+    public @Nonnull HttpCompression addUncompressedContentType(@Nonnull String contentType) {
+        uncompressedContentTypes.add(contentType.toLowerCase(Locale.ROOT));
+        return this;
+    }
+
+    /** @param contentTypeOrNull for example "text/html; charset=UTF-8" */
+    public boolean isCompressible(@CheckForNull String contentTypeOrNull) {
+        if (contentTypeOrNull == null) return false;
+        var type = contentTypeOrNull.replaceAll(";.*", "").trim().toLowerCase(Locale.ROOT);
+        if (type.startsWith("image/") && ! type.equals("image/svg+xml")) return false;
+        if (type.startsWith("audio/") || type.startsWith("video/")) return false;
+        return ! uncompressedContentTypes.contains(type);
+    }
+
+    /** @return the encoding the client prefers, or null if it accepts neither gzip nor deflate */
+    public @CheckForNull ContentEncoding negotiate(@Nonnull HttpServletRequest request) {
+        var qualityForEncoding = new HashMap<String, Double>();
+        for (var headers = request.getHeaders("Accept-Encoding"); headers != null && headers.hasMoreElements(); ) {
+            for (var entry : headers.nextElement().split(",")) {
+                var parts = entry.split(";");
+                var encoding = parts[0].trim().toLowerCase(Locale.ROOT);
+                var quality = 1.0;
+                for (int i = 1; i < parts.length; i++) {
+                    var parameter = parts[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try { quality = Double.parseDouble(parameter.substring(2)); }
+                        catch (NumberFormatException e) { quality = 0; }
+                    }
+                }
+                if ( ! encoding.isEmpty()) qualityForEncoding.put(encoding, quality);
+            }
+        }
+
+        var wildcard = qualityForEncoding.getOrDefault("*", 0.0);
+        var gzip = qualityForEncoding.getOrDefault("gzip", qualityForEncoding.getOrDefault("x-gzip", wildcard));
+        var deflate = qualityForEncoding.getOrDefault("deflate", wildcard);
+        if (gzip <= 0 && deflate <= 0) return null;
+        return gzip >= deflate ? ContentEncoding.gzip : ContentEncoding.deflate;
+    }
+
+    /** @return a stream which compresses to the output; closing it finishes the compressed data and closes the output */
+    public @Nonnull OutputStream newCompressingStream(@Nonnull ContentEncoding encoding, @Nonnull OutputStream out) throws IOException {
+        switch (encoding) {
+            case gzip:
+                return new GZIPOutputStream(out, bufferSize) {
+                    { def.setLevel(level); }
+                };
+            case deflate:
+                var deflater = new Deflater(level); // "deflate" in HTTP means the zlib format, which Deflater produces by default
+                return new DeflaterOutputStream(out, deflater, bufferSize) {
+                    @Override public void close() throws IOException {
+                        try { super.close(); }
+                        finally { deflater.end(); }
+                    }
+                };
+            default:
+                throw new RuntimeException("Unreachable: " + encoding);
+        }
+    }
+}
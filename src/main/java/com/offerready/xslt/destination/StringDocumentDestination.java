@@ -22,6 +22,6 @@ public class StringDocumentDestination extends BufferedDocumentGenerationDestina
     @Override
     public String toString() {
         assertValid();
-        return body.toString(UTF_8);
+        return buffer.toString(UTF_8);
     }
 }
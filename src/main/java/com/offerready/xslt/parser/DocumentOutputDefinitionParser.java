@@ -61,10 +61,14 @@ public class DocumentOutputDefinitionParser extends DomParser {
             getSubElements(outputDefnElement, "convert-output-xml-fo-to-pdf").size() > 0 ? OutputConversion.xslFoToPdf :  // deprecated
             getSubElements(outputDefnElement, "convert-output-xsl-fo-to-pdf").size() > 0 ? OutputConversion.xslFoToPdf :
             getSubElements(outputDefnElement, "convert-output-xml-to-excel").size()  > 0 ? OutputConversion.excelXmlToExcelBinary :
+            getSubElements(outputDefnElement, "convert-output-xml-to-xlsx").size()   > 0 ? OutputConversion.excelXmlToXlsx :
+            getSubElements(outputDefnElement, "convert-output-html-to-body").size()  > 0 ? OutputConversion.htmlToHtmlBody :
             OutputConversion.none;
         result.contentType = contentType;
+        result.resultCacheDisabled = getSubElements(outputDefnElement, "disable-result-cache").size() > 0;
 
         var excel = getOptionalSingleSubElement(outputDefnElement, "convert-output-xml-to-excel");
+        if (excel == null) excel = getOptionalSingleSubElement(outputDefnElement, "convert-output-xml-to-xlsx");
         if (excel != null) {
             // Deprecated, use input-decimal-separator attribute instead
             if (Boolean.parseBoolean(getOptionalAttribute(excel, "magic-numbers", "false")))
@@ -72,6 +76,8 @@ public class DocumentOutputDefinitionParser extends DomParser {
 
             var style = getOptionalAttribute(excel, "input-decimal-separator");
             if (style != null) result.inputDecimalSeparator = InputDecimalSeparator.valueOf(style);
+
+            result.excelStreamRows = Boolean.parseBoolean(getOptionalAttribute(excel, "stream-rows", "false"));
         }
 
         return result;
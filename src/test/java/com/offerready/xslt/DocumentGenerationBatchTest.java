@@ -0,0 +1,85 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.DocumentGenerationBatch.Job;
+import com.offerready.xslt.DocumentGenerationBatch.JobResult;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import com.offerready.xslt.destination.DocumentGenerationDestination;
+import junit.framework.TestCase;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+public class DocumentGenerationBatchTest extends TestCase {
+
+    /** Records the maximum number of documents which are being written at once, for the destinations it creates */
+    protected static class ConcurrencyRecorder {
+        protected final @Nonnull AtomicInteger current = new AtomicInteger(), maximum = new AtomicInteger();
+
+        /** The first documents wait for each other, so that they are certainly written at once */
+        protected final @Nonnull CountDownLatch overlapping;
+        protected volatile boolean overlapped = false;
+
+        protected ConcurrencyRecorder(int overlappingCount) {
+            overlapping = new CountDownLatch(overlappingCount);
+        }
+
+        protected @Nonnull DocumentGenerationDestination newDestination() {
+            return new DocumentGenerationDestination() {
+                @Override public void setContentType(@Nonnull String contentType) { }
+                @Override public void setContentDispositionToDownload(@CheckForNull String filename) { }
+
+                @Override public @Nonnull OutputStream getOutputStream() {
+                    maximum.accumulateAndGet(current.incrementAndGet(), Math::max);
+                    if (overlapping.getCount() > 0) {
+                        overlapping.countDown();
+                        try { if (overlapping.await(10, TimeUnit.SECONDS)) overlapped = true; }
+                        catch (InterruptedException e) { throw new RuntimeException(e); }
+                    }
+                    return new ByteArrayOutputStream() {
+                        @Override public void close() { current.decrementAndGet(); }
+                    };
+                }
+            };
+        }
+    }
+
+    public void test_run() throws Exception {
+        var generator = new DocumentGenerator(new XsltCompilationThreads(),
+            new DocumentOutputDefinition(new XsltParameters(Map.of("", Map.of()))));
+        var batch = new DocumentGenerationBatch(generator, 3);
+
+        var recorder = new ConcurrencyRecorder(3);
+        var completed = new ConcurrentLinkedQueue<JobResult>();
+        var result = batch.run(IntStream.range(0, 20).mapToObj(i -> new Job(
+            new StreamSource(new StringReader(i % 7 == 3 ? "<not-xml" : "<doc>" + i + "</doc>")),
+            recorder.newDestination(), null)), completed::add);
+
+        assertTrue(recorder.overlapped);
+        assertTrue(recorder.maximum.get() <= 3);
+        assertEquals(20, completed.size());
+
+        assertEquals(3, result.errors().size());
+        assertEquals(3, result.errors().get(0).jobIndex());
+        assertEquals(10, result.errors().get(1).jobIndex());
+        assertEquals(17, result.errors().get(2).jobIndex());
+        assertNotNull(result.errors().get(0).errorOrNull());
+
+        var statistics = result.statistics();
+        assertEquals(20, statistics.jobCount());
+        assertEquals(3, statistics.errorCount());
+        assertTrue(statistics.minLatency().compareTo(statistics.medianLatency()) <= 0);
+        assertTrue(statistics.medianLatency().compareTo(statistics.p95Latency()) <= 0);
+        assertTrue(statistics.p95Latency().compareTo(statistics.maxLatency()) <= 0);
+        assertTrue(statistics.jobsPerSecond() > 0);
+    }
+}
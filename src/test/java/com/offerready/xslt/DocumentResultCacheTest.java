@@ -0,0 +1,189 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.DocumentResultCache.KeyedURIResolver;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import com.offerready.xslt.destination.DocumentGenerationDestination;
+import junit.framework.TestCase;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class DocumentResultCacheTest extends TestCase {
+
+    protected static class CapturingDestination implements DocumentGenerationDestination {
+        protected @CheckForNull String contentTypeOrNull = null, filenameOrNull = null;
+        protected boolean download = false;
+        protected final @Nonnull ByteArrayOutputStream body = new ByteArrayOutputStream();
+        @Override public void setContentType(@Nonnull String contentType) { contentTypeOrNull = contentType; }
+        @Override public void setContentDispositionToDownload(@CheckForNull String filename) { download = true; filenameOrNull = filename; }
+        @Override public @Nonnull OutputStream getOutputStream() { return body; }
+    }
+
+    protected static class TenantResolver implements KeyedURIResolver {
+        protected final @Nonnull String tenant;
+        protected TenantResolver(@Nonnull String tenant) { this.tenant = tenant; }
+        @Override public @CheckForNull Source resolve(String href, String base) { return null; }
+        @Override public @Nonnull String getResultCacheKey() { return tenant; }
+    }
+
+    protected static void record(@Nonnull DocumentResultCache cache, @Nonnull String key, @Nonnull byte[] body, @Nonnull CapturingDestination destination)
+    throws IOException {
+        var recording = cache.newRecordingDestination(destination);
+        recording.setContentType("application/pdf");
+        recording.setContentDispositionToDownload("invoice.pdf");
+        try (var out = recording.getOutputStream()) { out.write(body); }
+        cache.put(key, recording);
+    }
+
+    public void test_replay() throws Exception {
+        var cache = new DocumentResultCache(1_000_000);
+        assertFalse(cache.replay("key", new CapturingDestination()));
+        assertEquals(1, cache.getMissCount());
+
+        record(cache, "key", "hello".getBytes(UTF_8), new CapturingDestination());
+        assertEquals(1, cache.getSize());
+
+        var replayed = new CapturingDestination();
+        assertTrue(cache.replay("key", replayed));
+        assertEquals("application/pdf", replayed.contentTypeOrNull);
+        assertTrue(replayed.download);
+        assertEquals("invoice.pdf", replayed.filenameOrNull);
+        assertEquals("hello", replayed.body.toString(UTF_8));
+        assertEquals(1, cache.getHitCount());
+
+        assertFalse(cache.replay("other-key", new CapturingDestination()));
+        cache.invalidateAll();
+        assertFalse(cache.replay("key", new CapturingDestination()));
+        assertEquals(3, cache.getMissCount());
+    }
+
+    public void test_overflow() throws Exception {
+        var cache = new DocumentResultCache(1_000_000);
+        cache.setMaximumDocumentBytes(10);
+
+        var destination = new CapturingDestination();
+        record(cache, "key", "more than ten bytes".getBytes(UTF_8), destination);
+        assertEquals("more than ten bytes", destination.body.toString(UTF_8)); // Still passed on
+        assertEquals(0, cache.getSize());
+        assertFalse(cache.replay("key", new CapturingDestination()));
+    }
+
+    public void test_diskTier() throws Exception {
+        var directory = Files.createTempDirectory("result-cache-").toFile();
+        try {
+            var cache = new DocumentResultCache(1_000_000);
+            cache.setDiskTier(directory, 1_000_000, 100);
+
+            record(cache, "small", new byte[99], new CapturingDestination());
+            var large = new byte[5_000];
+            for (int i = 0; i < large.length; i++) large[i] = (byte) i;
+            record(cache, "large", large, new CapturingDestination());
+            assertEquals(2, cache.getSize());
+            assertEquals(1, cache.memory.size());
+            assertTrue(new File(directory, "large.document").exists());
+            assertEquals(1, directory.list().length); // No temporary files are left
+
+            var replayed = new CapturingDestination();
+            assertTrue(cache.replay("large", replayed));
+            assertEquals("application/pdf", replayed.contentTypeOrNull);
+            assertTrue(Arrays.equals(large, replayed.body.toByteArray()));
+
+            record(cache, "too-large", new byte[200_000], new CapturingDestination());
+            assertEquals(2, cache.getSize());
+            assertEquals(1, directory.list().length);
+
+            cache.invalidateAll();
+            assertEquals(0, directory.list().length);
+        }
+        finally {
+            try (var files = Files.walk(directory.toPath())) {
+                files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+            }
+        }
+    }
+
+    protected static boolean isDeterministic(@Nonnull String body, @Nonnull String namespaces) throws Exception {
+        var xslt = "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform' " + namespaces + ">" +
+            "<xsl:template match='/'>" + body + "</xsl:template></xsl:stylesheet>";
+        var factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        var document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xslt.getBytes(UTF_8)));
+        return WeaklyCachedXsltTransformer.isDeterministic(document.getDocumentElement());
+    }
+
+    public void test_isDeterministic() throws Exception {
+        assertTrue(isDeterministic("<p><xsl:value-of select='upper-case(/doc)'/></p>", ""));
+        assertTrue(isDeterministic("<p><xsl:value-of select='my-document-number(/doc)'/></p>", ""));
+        assertFalse(isDeterministic("<p><xsl:value-of select='current-dateTime()'/></p>", ""));
+        assertFalse(isDeterministic("<p><xsl:value-of select='document(\"other.xml\")/x'/></p>", ""));
+        assertFalse(isDeterministic("<p><xsl:value-of select='t:now()'/></p>", "xmlns:t='java:java.lang.System'"));
+        assertTrue(isDeterministic("<p><xsl:value-of select='b:encode(/doc)'/></p>", "xmlns:b='java:com.offerready.xslt.xsltfunction.Base64'"));
+    }
+
+    protected static void writeStylesheet(@Nonnull File file, @Nonnull String content) throws IOException {
+        Files.writeString(file.toPath(), "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+            content + "</xsl:stylesheet>");
+    }
+
+    public void test_isDeterministic_modules() throws Exception {
+        var directory = Files.createTempDirectory("modules-").toFile();
+        try {
+            writeStylesheet(new File(directory, "plain.xslt"), "<xsl:template name='plain'><p/></xsl:template>");
+            writeStylesheet(new File(directory, "date.xslt"), "<xsl:template name='date'><xsl:value-of select='current-dateTime()'/></xsl:template>");
+            writeStylesheet(new File(directory, "nested.xslt"), "<xsl:include href='date.xslt'/>");
+
+            var factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            var main = new File(directory, "main.xslt");
+            for (var c : new Object[][] {
+                { "<xsl:include href='plain.xslt'/>", true },
+                { "<xsl:include href='date.xslt'/>", false },
+                { "<xsl:import href='date.xslt'/>", false },
+                { "<xsl:import href='nested.xslt'/>", false },
+                { "<xsl:include href='missing.xslt'/>", false },
+            }) {
+                writeStylesheet(main, (String) c[0]);
+                var document = factory.newDocumentBuilder().parse(main);
+                assertEquals((String) c[0], c[1], WeaklyCachedXsltTransformer.isDeterministic(document.getDocumentElement()));
+            }
+        }
+        finally {
+            try (var files = Files.walk(directory.toPath())) {
+                files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+            }
+        }
+    }
+
+    public void test_uriResolverKey() throws Exception {
+        var cache = new DocumentResultCache(1_000_000);
+        var generator = new DocumentGenerator(new XsltCompilationThreads(),
+            new DocumentOutputDefinition(new XsltParameters(Map.of("", Map.of()))));
+        generator.setResultCache(cache);
+
+        URIResolver resolver = (href, base) -> null;
+        for (var r : new URIResolver[] { null, null, resolver, resolver, (href, base) -> null,
+                new TenantResolver("a"), new TenantResolver("a"), new TenantResolver("b") }) {
+            var destination = new CapturingDestination();
+            generator.transform(destination, new StreamSource(new StringReader("<doc>hello</doc>")), true, r, null);
+            assertTrue(destination.body.toString(UTF_8).contains("<doc>hello</doc>"));
+        }
+        assertEquals(3, cache.getHitCount()); // The same resolver object, or an equal key
+        assertEquals(5, cache.getMissCount());
+    }
+}
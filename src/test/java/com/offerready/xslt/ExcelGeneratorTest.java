@@ -1,8 +1,17 @@
 package com.offerready.xslt;
 
+import com.offerready.xslt.ExcelGenerator.InputDecimalSeparator;
+import jxl.Sheet;
+import jxl.Workbook;
 import junit.framework.TestCase;
 
+import javax.annotation.Nonnull;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
 import static com.offerready.xslt.ExcelGenerator.InputDecimalSeparator.magic;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class ExcelGeneratorTest extends TestCase {
     
@@ -23,4 +32,33 @@ public class ExcelGeneratorTest extends TestCase {
         
         assertNull(magic.tryParseNumber("foo"));
     }
-}
\ No newline at end of file
+
+    protected @Nonnull Sheet generate(boolean streamRows, @Nonnull String html) throws Exception {
+        var xls = new ByteArrayOutputStream();
+        var generator = new ExcelGenerator(InputDecimalSeparator.dot, xls);
+        generator.setStreamRows(streamRows);
+        SAXParserFactory.newInstance().newSAXParser().parse(new ByteArrayInputStream(html.getBytes(UTF_8)), generator);
+        return Workbook.getWorkbook(new ByteArrayInputStream(xls.toByteArray())).getSheet(0);
+    }
+
+    public void test_streamRows() throws Exception {
+        var html = "<html><table>" +
+            "<thead><tr><th colspan='2'>Heading</th></tr></thead>" +
+            "<tfoot><tr><td>Total</td><td>3.00</td></tr></tfoot>" +
+            "<tr><td>a</td><td>1.00</td></tr>" +
+            "<tr><td></td><td><table><tr><td>nested</td></tr></table></td></tr>" +
+            "<tr><td excel-type='text'>a long description</td><td>2.00</td></tr>" +
+            "</table></html>";
+
+        for (var streamRows : new boolean[] { false, true }) {
+            var sheet = generate(streamRows, html);
+            assertEquals(4, sheet.getRows());
+            assertEquals("Heading", sheet.getCell(0, 0).getContents());
+            assertEquals(1, sheet.getMergedCells()[0].getBottomRight().getColumn());
+            assertEquals("a", sheet.getCell(0, 1).getContents());
+            assertEquals("a long description", sheet.getCell(0, 2).getContents());
+            assertEquals("Total", sheet.getCell(0, 3).getContents());
+            assertEquals((int) ("a long description".length() * 1.5), sheet.getColumnView(0).getSize() / 256);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.offerready.xslt;
+
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+
+public class FopImageCacheTest extends TestCase {
+
+    public void test_getResource() throws Exception {
+        var directory = Files.createTempDirectory("image cache ");
+        try {
+            var image = Files.write(directory.resolve("logo.png"), new byte[] { 1, 2, 3 });
+            var font = Files.write(directory.resolve("font.ttf"), new byte[] { 4, 5 });
+
+            var cache = new FopImageCache(1_000_000);
+            var resolver = cache.newResourceResolver(null);
+            for (int i = 0; i < 2; i++) {
+                try (var r = resolver.getResource(image.toUri())) { assertEquals(3, r.readAllBytes().length); }
+                try (var r = resolver.getResource(font.toUri())) { assertEquals(2, r.readAllBytes().length); }
+            }
+            assertEquals(1, cache.getImageCount()); // The font is not cached
+            assertEquals(1, cache.getHitCount());
+
+            // The application's resolver returns a source without a system ID, or with one which is not a strict URI
+            var noSystemId = cache.newResourceResolver((href, base) -> new StreamSource());
+            try (var r = noSystemId.getResource(image.toUri())) { assertEquals(3, r.readAllBytes().length); }
+            var spaces = cache.newResourceResolver((href, base) -> new StreamSource("file:" + image.toAbsolutePath()));
+            try (var r = spaces.getResource(image.toUri())) { assertEquals(3, r.readAllBytes().length); }
+        }
+        finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    public void test_discardChangedFiles() throws Exception {
+        var directory = Files.createTempDirectory("image-cache-");
+        try {
+            var cache = new FopImageCache(100); // Images larger than 10 bytes are not held
+            var image = Files.write(directory.resolve("large.png"), new byte[20]);
+            try (var r = cache.newResourceResolver(null).getResource(image.toUri())) { r.readAllBytes(); }
+            assertEquals(0, cache.getImageCount());
+
+            var generation = cache.getGeneration();
+            cache.lastChangeCheckMillis.set(0);
+            cache.discardChangedFiles();
+            assertEquals(generation, cache.getGeneration());
+
+            Files.write(image, new byte[30]);
+            cache.lastChangeCheckMillis.set(0);
+            cache.discardChangedFiles();
+            assertTrue(cache.getGeneration() > generation); // FOP's own image cache might hold the old image
+        }
+        finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    protected static void deleteRecursively(@Nonnull Path directory) throws IOException {
+        try (var files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.offerready.xslt;
+
+import junit.framework.TestCase;
+
+import net.sf.saxon.s9api.Serializer;
+import org.xml.sax.InputSource;
+
+import javax.annotation.CheckForNull;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class HtmlBodyExtractorTest extends TestCase {
+
+    /** The previous implementation, which searched the HTML once per part, to check the output is unchanged */
+    protected static class PreviousHtmlBodyExtractor {
+        protected List<String> scriptsToIgnore = new ArrayList<>();
+
+        protected record Range(int startIncl, int endExcl) {
+            boolean overlaps(Range x) { return x.endExcl > startIncl && x.startIncl < endExcl; }
+        }
+
+        protected String ignoreScripts(String html) {
+            for (var s : scriptsToIgnore)
+                html = html.replaceAll(
+                    "<script src=['\"][^'\"]*" + Pattern.quote(s) + "[^'\"]*['\"]></script>",
+                    "<!-- ignoring " + s + " -->");
+            return html;
+        }
+
+        protected void extractElements(
+            StringBuilder result, String input, List<Range> ranges, String start, @CheckForNull String endOfStartOrNull, String end
+        ) {
+            var startIdx = -1;
+            var ourResult = new StringBuilder();
+            while ((startIdx = input.indexOf(start, startIdx+1)) >= 0) {
+                var idxOfEndTag = input.indexOf(end, startIdx);
+                var range = endOfStartOrNull == null
+                    ? new Range(startIdx, idxOfEndTag + end.length())
+                    : new Range(input.indexOf(endOfStartOrNull, startIdx) + endOfStartOrNull.length(), idxOfEndTag);
+                var rangeOverlaps = false;
+                for (var r : ranges) if (r.overlaps(range)) rangeOverlaps = true;
+                if (rangeOverlaps) continue;
+                ourResult.append(ignoreScripts(input.substring(range.startIncl, range.endExcl)));
+                ranges.add(range);
+            }
+            ourResult.append("\n");
+            result.insert(0, ourResult);
+        }
+
+        public String extractBody(String htmlText) {
+            var result = new StringBuilder();
+            var ranges = new ArrayList<Range>();
+            extractElements(result, htmlText, ranges, "<body",         ">",  "</body>");
+            extractElements(result, htmlText, ranges, "<!--[if IE]>",  null, "<![endif]-->");
+            extractElements(result, htmlText, ranges, "<!--[if !IE]>", null, "<!--<![endif]-->");
+            extractElements(result, htmlText, ranges, "<style",        null, "</style>");
+            return result.toString();
+        }
+    }
+
+    protected static final String html =
+        "<html><head><title>Report</title>\n" +
+        "<style type='text/css'>td { color: red }</style>\n" +
+        "<script src='https://code.jquery.com/jquery.min.js'></script>\n" +
+        "<!--[if IE]><style>td { color: blue }</style><![endif]-->\n" +
+        "<!--[if !IE]><!--><style>td { color: green }</style><!--<![endif]-->\n" +
+        "</head><body class='report'>\n" +
+        "<script src=\"js/jquery-ui.js\"></script><script src='js/report.js'></script>\n" +
+        "<style>p { margin: 0 }</style><p>Hello</p>\n" +
+        "</body></html>";
+
+    public void testExtractBody() throws Exception {
+        var extractor = new HtmlBodyExtractor().addScriptToIgnore("jquery");
+        var expected =
+            "<style type='text/css'>td { color: red }</style>\n" +
+            "<!--[if !IE]><!--><style>td { color: green }</style><!--<![endif]-->\n" +
+            "<!--[if IE]><style>td { color: blue }</style><![endif]-->\n" +
+            "\n" +
+            "<!-- ignoring jquery --><script src='js/report.js'></script>\n" +
+            "<style>p { margin: 0 }</style><p>Hello</p>\n" +
+            "\n";
+        assertEquals(expected, extractor.extractBody(html));
+        assertEquals(expected, extractor.extractBody(new StringBuilder(html)));
+        assertEquals(expected, extractor.extractBody(new StringReader(html)));
+    }
+
+    public void testExtractingFilter() throws Exception {
+        var html = HtmlBodyExtractorTest.html.replace('\'', '"'); // Serializer uses double quotes
+        var out = new ByteArrayOutputStream();
+        var serializer = WeaklyCachedXsltTransformer.getSaxonProcessor().newSerializer(out);
+        serializer.setOutputProperty(Serializer.Property.METHOD, "html");
+        serializer.setOutputProperty(Serializer.Property.INDENT, "no");
+        var filter = new HtmlBodyExtractingFilter(serializer.getContentHandler(), List.of("jquery"));
+        var factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        var reader = factory.newSAXParser().getXMLReader();
+        reader.setContentHandler(filter);
+        reader.setProperty("http://xml.org/sax/properties/lexical-handler", filter);
+        reader.parse(new InputSource(new StringReader(html)));
+        assertEquals(new HtmlBodyExtractor().addScriptToIgnore("jquery").extractBody(html), out.toString(UTF_8));
+    }
+
+    protected static String randomHtml(Random random) {
+        var fragments = new String[] {
+            "<body>", "<body class='x'>", "</body>", "<!--[if IE]>", "<![endif]-->", "<!--[if !IE]>", "<!--<![endif]-->",
+            "<style>", "</style>", "<p>", "text", ">", "<", "<script src='a/jquery.js'></script>", "<script src=\"b.js\"></script>",
+        };
+        var result = new StringBuilder();
+        for (int i = random.nextInt(20); i > 0; i--) result.append(fragments[random.nextInt(fragments.length)]);
+        return result.toString();
+    }
+
+    public void testSameOutputAsPreviousImplementation() {
+        var extractor = new HtmlBodyExtractor().addScriptToIgnore("jquery").addScriptToIgnore("b.js");
+        var previous = new PreviousHtmlBodyExtractor();
+        previous.scriptsToIgnore.addAll(List.of("jquery", "b.js"));
+
+        assertEquals(previous.extractBody(html), extractor.extractBody(html));
+
+        var random = new Random(123);
+        for (int i = 0; i < 20_000; i++) {
+            var input = randomHtml(random);
+            String expected;
+            try { expected = previous.extractBody(input); }
+            catch (IndexOutOfBoundsException e) { expected = null; } // e.g. start tag without end tag
+            try {
+                assertEquals(input, expected, extractor.extractBody(input));
+                assertEquals(input, expected, extractor.extractBody(new StringBuilder(input)));
+            }
+            catch (IndexOutOfBoundsException e) { assertNull(input, expected); }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.DocumentOutputDefinition.OutputConversion;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import com.offerready.xslt.destination.StringDocumentDestination;
+import junit.framework.TestCase;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Map;
+
+public class InMemoryDocumentGenerationMetricsTest extends TestCase {
+
+    public void test_record() throws Exception {
+        var xsltFile = File.createTempFile("metrics-", ".xslt");
+        try {
+            Files.writeString(xsltFile.toPath(),
+                "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "  <xsl:template match='/'><html><body><p><xsl:value-of select='/doc'/></p></body></html></xsl:template>" +
+                "</xsl:stylesheet>");
+            var defn = new DocumentOutputDefinition(new XsltParameters(Map.of("", Map.of())));
+            defn.xsltFileOrNull = xsltFile;
+            defn.outputConversion = OutputConversion.htmlToHtmlBody;
+
+            var metrics = new InMemoryDocumentGenerationMetrics();
+            var threads = new XsltCompilationThreads();
+            threads.setMetrics(metrics);
+            var generator = new DocumentGenerator(threads, defn);
+            new DocumentGenerator(threads, defn);
+            threads.execute();
+
+            generator.transform(new StringDocumentDestination(), new StreamSource(new StringReader("<doc>hello</doc>")), true, null, null);
+            try {
+                generator.transform(new StringDocumentDestination(), new StreamSource(new StringReader("<doc")), true, null, null);
+                fail();
+            }
+            catch (TransformerException ignored) { }
+
+            var template = metrics.getSnapshot().get(xsltFile.getAbsolutePath());
+            assertEquals(1, template.compileNanos().count());
+            assertTrue(template.compileNanos().max() > 0);
+            assertEquals(Long.valueOf(1), template.cacheMisses().get("xslt"));
+            assertEquals(Long.valueOf(1), template.cacheHits().get("xslt"));
+
+            var conversion = template.conversions().get(OutputConversion.htmlToHtmlBody);
+            assertEquals(2, conversion.transformNanos().count());
+            assertEquals(1, conversion.postConversionNanos().count()); // the failed transformation did not produce output
+            assertEquals(1, conversion.errorCount());
+            assertEquals(0, conversion.inFlight());
+            assertTrue(conversion.outputBytes().max() >= "<p>hello</p>".length());
+        }
+        finally {
+            Files.delete(xsltFile.toPath());
+        }
+    }
+}
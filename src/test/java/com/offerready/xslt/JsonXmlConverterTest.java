@@ -1,12 +1,23 @@
 package com.offerready.xslt;
 
+import com.offerready.xslt.JsonXmlConverter.XmlToJsonContentHandler;
 import junit.framework.TestCase;
+import net.sf.saxon.TransformerFactoryImpl;
 import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.json.JSONTokener;
+import org.json.XML;
+import org.xml.sax.InputSource;
 
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
 import java.io.StringReader;
 
+import static com.databasesandlife.util.DomParser.newDocumentBuilder;
 import static com.databasesandlife.util.InputOutputStreamUtil.prettyPrintXml;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class JsonXmlConverterTest extends TestCase {
 
@@ -26,10 +37,62 @@ public class JsonXmlConverterTest extends TestCase {
         assertEquals("<root>\n   <content>äöü</content>\n</root>", xmlStr);
     }
 
+    protected String convertJsonToXmlViaString(String json) throws Exception {
+        var converter = new JsonXmlConverter();
+        var safeJson = converter.makeKeysInJsonSafeForXml(new JSONTokener(new StringReader(json)).nextValue());
+        var xmlString = XML.toString(safeJson, "root", JsonXmlConverter.config);
+        return prettyPrintXml(newDocumentBuilder().parse(new InputSource(new StringReader(xmlString))).getDocumentElement());
+    }
+
+    public void testConvertJsonToXmlSameAsViaString() throws Exception {
+        for (var json : new String[] {
+            "{\"b\":1, \"a b\":[1,[2,[3]],{\"x\":null},\"\"], \"1\":{}, \"a_b\":true, \"_content\":[\"t\",2]}",
+            "{\"k\":\"a&b<c>\\r\\n\", \"xmlns\":{\"content\":1e3, \"é\":\"\\ud83d\\ude00\"}, \"e\":[,], unquoted:x,}",
+            "[{\"a\":2}]",
+            "\"text\"",
+        }) {
+            var xml = new JsonXmlConverter().convertJsonToXml(new StringReader(json), "root");
+            assertEquals(json, convertJsonToXmlViaString(json), prettyPrintXml(xml));
+        }
+
+        // Test: JSON which does not produce well-formed XML is an error
+        for (var json : new String[] { "[1,2]", "[]", "{\"a\":\"\\u0001\"}", "{\"a\":1,\"a\":2}" }) {
+            try {
+                new JsonXmlConverter().convertJsonToXml(new StringReader(json), "root");
+                fail(json);
+            }
+            catch (JSONException ignored) { }
+        }
+    }
+
     public void testConvertXmlToJson() {
         // Test: doesn't ignore <content> tag (which the library does do by default, unfortunately)
         var xml = "<foo><content>The content äöü</content></foo>";
         var json = new JsonXmlConverter().convertXmlToJson(xml);
         assertEquals("{\"foo\": {\"content\": \"The content äöü\"}}", json);
     }
+
+    protected String convertXmlToJsonWithContentHandler(String xml) throws Exception {
+        var json = new ByteArrayOutputStream();
+        new TransformerFactoryImpl().newTransformer().transform(new StreamSource(new StringReader(xml)),
+            new SAXResult(new XmlToJsonContentHandler(json)));
+        return json.toString(UTF_8);
+    }
+
+    public void testXmlToJsonContentHandler() throws Exception {
+        // Test: same formatting as convertXmlToJson, keys in document order
+        var json = convertXmlToJsonWithContentHandler("<foo><b x='1'/><a>4</a><content>äöü</content><a>true</a></foo>");
+        assertEquals("{\"foo\": {\n  \"b\": {\"x\": 1},\n  \"a\": [\n    4,\n    true\n  ],\n  \"content\": \"äöü\"\n}}", json);
+
+        // Test: same structure as convertXmlToJson
+        for (var xml : new String[] {
+            "<r><a>1</a><b>x</b><a>2</a><c/><d attr='true'>  text  </d><e>0123</e><f>1.50</f><g>null</g></r>",
+            "<r>pre<a/>mid<b>q</b>post</r>",
+            "<r xmlns:p='urn:p'><p:x a='1' b=''>t</p:x><y xmlns='urn:d'>u</y></r>",
+            "<r><a><b><c>deep</c></b></a><a>flat</a><a x='1'/><a/></r>",
+        }) {
+            var expected = new JSONObject(new JsonXmlConverter().convertXmlToJson(xml));
+            assertTrue(xml, expected.similar(new JSONObject(convertXmlToJsonWithContentHandler(xml))));
+        }
+    }
 }
@@ -0,0 +1,164 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.DocumentGenerator.XslFoProcessing;
+import com.offerready.xslt.DocumentOutputDefinition.OutputConversion;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import com.offerready.xslt.destination.DocumentGenerationDestination;
+import junit.framework.TestCase;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.LocatorImpl;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+public class PipelinedContentHandlerTest extends TestCase {
+
+    protected static class CapturingDestination implements DocumentGenerationDestination {
+        protected final @Nonnull ByteArrayOutputStream body = new ByteArrayOutputStream();
+        @Override public void setContentType(@Nonnull String contentType) { }
+        @Override public void setContentDispositionToDownload(@CheckForNull String filename) { }
+        @Override public @Nonnull OutputStream getOutputStream() { return body; }
+    }
+
+    protected static @Nonnull String transform(@Nonnull File xslt, @Nonnull XslFoProcessing processing, @Nonnull String xml) throws Exception {
+        var defn = new DocumentOutputDefinition(new XsltParameters(Map.of("", Map.of())));
+        defn.xsltFileOrNull = xslt;
+        defn.outputConversion = OutputConversion.xslFoToPdf;
+        var threads = new XsltCompilationThreads();
+        var generator = new DocumentGenerator(threads, defn);
+        threads.execute();
+        generator.setXslFoProcessing(processing);
+
+        var destination = new CapturingDestination();
+        generator.transform(destination, new StreamSource(new StringReader(xml)), true, null, null);
+        return destination.body.toString(ISO_8859_1)
+            .replaceAll("\\(D:[0-9+\\-Z']*\\)", "()") // Creation date
+            .replaceAll("\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d[+\\-Z0-9:]*", "") // Dates in the XMP metadata
+            .replaceAll("/ID \\[<\\w+> <\\w+>]", "/ID []");
+    }
+
+    protected static @Nonnull File writeXslFoXslt(@Nonnull String body) throws Exception {
+        var xslt = File.createTempFile("pipelined-", ".xslt");
+        Files.writeString(xslt.toPath(),
+            "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform' xmlns:fo='http://www.w3.org/1999/XSL/Format'>\n" +
+            "  <xsl:template match='/'>\n" +
+            "    <fo:root>\n" +
+            "      <fo:layout-master-set><fo:simple-page-master master-name='page'><fo:region-body/></fo:simple-page-master></fo:layout-master-set>\n" +
+            "      <fo:page-sequence master-reference='page'><fo:flow flow-name='xsl-region-body'>\n" +
+            "        " + body + "\n" +
+            "      </fo:flow></fo:page-sequence>\n" +
+            "    </fo:root>\n" +
+            "  </xsl:template>\n" +
+            "</xsl:stylesheet>");
+        return xslt;
+    }
+
+    public void test_samePdfAsStreaming() throws Exception {
+        var xslt = writeXslFoXslt("<xsl:for-each select='/doc/row'><fo:block>Row <xsl:value-of select='.'/></fo:block></xsl:for-each>");
+        try {
+            var xml = new StringBuilder("<doc>");
+            for (int i = 0; i < 2_000; i++) xml.append("<row>").append(i).append("</row>");
+            xml.append("</doc>");
+
+            var streaming = transform(xslt, XslFoProcessing.streaming, xml.toString());
+            var pipelined = transform(xslt, XslFoProcessing.pipelined, xml.toString());
+            assertTrue(streaming.startsWith("%PDF"));
+            assertEquals(streaming, pipelined);
+        }
+        finally {
+            Files.delete(xslt.toPath());
+        }
+    }
+
+    public void test_fopFails() throws Exception {
+        var xslt = writeXslFoXslt("<fo:block>Before</fo:block>\n        <fo:no-such-element/>");
+        try {
+            for (var processing : new XslFoProcessing[] { XslFoProcessing.streaming, XslFoProcessing.pipelined }) {
+                try { transform(xslt, processing, "<doc/>"); fail(); }
+                catch (TransformerException e) { assertTrue(e.getMessage(), e.getMessage().contains("\"fo:no-such-element\" is not a valid child")); }
+            }
+        }
+        finally {
+            Files.delete(xslt.toPath());
+        }
+    }
+
+    public void test_locator() throws Exception {
+        var lines = new ArrayList<Integer>();
+        var consumer = new DefaultHandler() {
+            protected Locator locator;
+            @Override public void setDocumentLocator(Locator locator) { this.locator = locator; }
+            @Override public void startElement(String uri, String localName, String qName, Attributes a) { lines.add(locator.getLineNumber()); }
+        };
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var pipeline = new PipelinedContentHandler(consumer, executor, 2, 10);
+            var locator = new LocatorImpl();
+            pipeline.setDocumentLocator(locator);
+            pipeline.startDocument();
+            for (int line = 1; line <= 5; line++) {
+                locator.setLineNumber(line);
+                pipeline.startElement("", "a", "a", new AttributesImpl());
+            }
+            pipeline.endDocument();
+            pipeline.awaitCompletion();
+            assertEquals(List.of(1, 2, 3, 4, 5), lines);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void test_abort() throws Exception {
+        var processed = new AtomicInteger();
+        var started = new CountDownLatch(1);
+        var released = new CountDownLatch(1);
+        var consumer = new DefaultHandler() {
+            @Override public void startElement(String uri, String localName, String qName, Attributes a) {
+                started.countDown();
+                try { released.await(); }
+                catch (InterruptedException e) { throw new RuntimeException(e); }
+                processed.incrementAndGet();
+            }
+        };
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var pipeline = new PipelinedContentHandler(consumer, executor, 3, 10) {
+                @Override public void abort() {
+                    aborted = true;
+                    released.countDown(); // The consumer is released only once it is certain to see the abort
+                    super.abort();
+                }
+            };
+            pipeline.startElement("", "a", "a", new AttributesImpl());
+            pipeline.startElement("", "b", "b", new AttributesImpl());
+            pipeline.startElement("", "c", "c", new AttributesImpl());
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            pipeline.abort();
+            assertEquals(1, processed.get()); // Returns after the first event has been processed, but does not process the others
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
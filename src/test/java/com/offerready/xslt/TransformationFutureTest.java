@@ -0,0 +1,90 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import com.offerready.xslt.destination.DocumentGenerationDestination;
+import junit.framework.TestCase;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class TransformationFutureTest extends TestCase {
+
+    protected static class CapturingDestination implements DocumentGenerationDestination {
+        protected final @Nonnull ByteArrayOutputStream body = new ByteArrayOutputStream();
+        @Override public void setContentType(@Nonnull String contentType) { }
+        @Override public void setContentDispositionToDownload(@CheckForNull String filename) { }
+        @Override public @Nonnull OutputStream getOutputStream() { return body; }
+    }
+
+    /** Waits until released before returning the XML, even if interrupted, and records whether it was interrupted */
+    protected static class BlockingInputStream extends InputStream {
+        protected final @Nonnull CountDownLatch started = new CountDownLatch(1), interrupted = new CountDownLatch(1), released = new CountDownLatch(1);
+        protected final @Nonnull ByteArrayInputStream xml = new ByteArrayInputStream("<doc>hello</doc>".getBytes(UTF_8));
+
+        @Override public int read() {
+            started.countDown();
+            while (released.getCount() > 0) {
+                try { released.await(); }
+                catch (InterruptedException e) { interrupted.countDown(); }
+            }
+            return xml.read();
+        }
+    }
+
+    protected @Nonnull DocumentGenerator newIdentityGenerator() throws Exception {
+        return new DocumentGenerator(new XsltCompilationThreads(),
+            new DocumentOutputDefinition(new XsltParameters(Map.of("", Map.of()))));
+    }
+
+    public void test_complete() throws Exception {
+        var destination = new CapturingDestination();
+        var xml = new StreamSource(new ByteArrayInputStream("<doc>hello</doc>".getBytes(UTF_8)));
+        newIdentityGenerator().transformAsync(destination, xml, true, null, null).get(10, TimeUnit.SECONDS);
+        assertTrue(destination.body.toString(UTF_8).contains("<doc>hello</doc>"));
+    }
+
+    public void test_cancel() throws Exception {
+        var destination = new CapturingDestination();
+        var input = new BlockingInputStream();
+        var future = newIdentityGenerator().transformAsync(destination, new StreamSource(input), true, null, null);
+        assertTrue(input.started.await(10, TimeUnit.SECONDS));
+
+        assertTrue(future.cancel(true));
+        try { future.get(); fail(); }
+        catch (CancellationException ignored) { }
+        assertTrue(input.interrupted.await(10, TimeUnit.SECONDS));
+
+        input.released.countDown();
+        Thread.sleep(200); // The transformation continues after the input is released, but cannot write
+        assertEquals(0, destination.body.size());
+    }
+
+    public void test_timeout() throws Exception {
+        var destination = new CapturingDestination();
+        var input = new BlockingInputStream();
+        var future = newIdentityGenerator().transformAsync(destination, new StreamSource(input), true, null, null);
+        assertTrue(input.started.await(10, TimeUnit.SECONDS));
+        future.orTimeout(100, TimeUnit.MILLISECONDS);
+
+        try { future.get(10, TimeUnit.SECONDS); fail(); }
+        catch (ExecutionException e) { assertTrue(e.getCause() instanceof TimeoutException); }
+        assertTrue(input.interrupted.await(10, TimeUnit.SECONDS));
+
+        input.released.countDown();
+        Thread.sleep(200);
+        assertEquals(0, destination.body.size());
+    }
+}
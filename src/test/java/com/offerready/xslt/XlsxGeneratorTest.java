@@ -0,0 +1,104 @@
+package com.offerready.xslt;
+
+import com.offerready.xslt.DocumentOutputDefinition.OutputConversion;
+import com.offerready.xslt.ExcelGenerator.InputDecimalSeparator;
+import com.offerready.xslt.WeaklyCachedXsltTransformer.XsltCompilationThreads;
+import com.offerready.xslt.destination.BufferedDocumentGenerationDestination;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class XlsxGeneratorTest extends TestCase {
+
+    public void test_getColumnName() {
+        assertEquals("A", XlsxGenerator.getColumnName(0));
+        assertEquals("Z", XlsxGenerator.getColumnName(25));
+        assertEquals("AA", XlsxGenerator.getColumnName(26));
+        assertEquals("AZ", XlsxGenerator.getColumnName(51));
+        assertEquals("XFD", XlsxGenerator.getColumnName(16_383));
+    }
+
+    public void test_generate() throws Exception {
+        var html = "<html><table>" +
+            "<thead><tr><th colspan='2' style='font-weight: bold'>Heading &amp; more</th></tr></thead>" +
+            "<tfoot><tr><td>Total</td><td>3.00</td></tr></tfoot>" +
+            "<tr><td>a</td><td>1.00</td><td excel-ignore='true'>ignored</td></tr>" +
+            "<tr><td></td></tr>" +
+            "<tr><td excel-type='text'>002</td><excel-td>b</excel-td></tr>" +
+            "</table></html>";
+
+        var xlsx = new ByteArrayOutputStream();
+        SAXParserFactory.newInstance().newSAXParser().parse(new ByteArrayInputStream(html.getBytes(UTF_8)),
+            new XlsxGenerator(InputDecimalSeparator.dot, xlsx));
+
+        var entries = new HashMap<String, String>();
+        try (var zip = new ZipInputStream(new ByteArrayInputStream(xlsx.toByteArray()))) {
+            for (var e = zip.getNextEntry(); e != null; e = zip.getNextEntry())
+                entries.put(e.getName(), new String(zip.readAllBytes(), UTF_8));
+        }
+        for (var xml : entries.values())
+            DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(UTF_8)));
+
+        var sheet = entries.get("xl/worksheets/sheet1.xml");
+        assertTrue(sheet.contains("<c r=\"A1\" s=\"1\" t=\"inlineStr\"><is><t xml:space=\"preserve\">Heading &amp; more</t></is></c>"));
+        assertTrue(sheet.contains("<c r=\"B2\" s=\"3\"><v>1.0</v></c></row>"));
+        assertTrue(sheet.contains("<c r=\"A3\" s=\"2\" t=\"inlineStr\"><is><t xml:space=\"preserve\">002</t></is></c>"));
+        assertTrue(sheet.contains("<c r=\"A4\" s=\"2\" t=\"inlineStr\"><is><t xml:space=\"preserve\">Total</t></is></c>"));
+        assertFalse(sheet.contains("ignored"));
+        assertFalse(sheet.contains("r=\"5\""));
+        assertTrue(sheet.contains("<mergeCell ref=\"A1:B1\"/>"));
+        assertTrue(sheet.contains("<col min=\"1\" max=\"1\" width=\"21\" customWidth=\"1\"/>"));
+        assertTrue(entries.get("xl/styles.xml").contains("formatCode=\"#,##0.00\""));
+    }
+
+    protected static @Nonnull Set<String> listTemporaryDocuments() {
+        var files = new File(System.getProperty("java.io.tmpdir")).list((dir, name) -> name.startsWith("document-") && name.endsWith(".tmp"));
+        return files == null ? Set.of() : Set.of(files);
+    }
+
+    public void test_xsltFails() throws Exception {
+        var xsltFile = File.createTempFile("xlsx-", ".xslt");
+        try {
+            // More than a megabyte of rows, so they are written to a temporary file, before the XSLT fails
+            Files.writeString(xsltFile.toPath(),
+                "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
+                "  <xsl:template match='/'><html><table>" +
+                "    <xsl:for-each select='1 to 30000'><tr><td>A description of the row <xsl:value-of select='.'/></td></tr></xsl:for-each>" +
+                "    <xsl:value-of select='error()'/>" +
+                "  </table></html></xsl:template>" +
+                "</xsl:stylesheet>");
+            var defn = new DocumentOutputDefinition(new XsltParameters(Map.of("", Map.of())));
+            defn.xsltFileOrNull = xsltFile;
+            defn.outputConversion = OutputConversion.excelXmlToXlsx;
+            var threads = new XsltCompilationThreads();
+            var generator = new DocumentGenerator(threads, defn);
+            threads.execute();
+
+            var before = listTemporaryDocuments();
+            try {
+                generator.transform(new BufferedDocumentGenerationDestination(), new StreamSource(new StringReader("<doc/>")), true, null, null);
+                fail();
+            }
+            catch (TransformerException ignored) { }
+            assertEquals(before, listTemporaryDocuments());
+        }
+        finally {
+            Files.delete(xsltFile.toPath());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.offerready.xslt.destination;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class ChunkedBufferTest extends TestCase {
+
+    protected static byte[] randomBytes(int length) {
+        var result = new byte[length];
+        new Random(length).nextBytes(result);
+        return result;
+    }
+
+    /** Writes in pieces of varying lengths, some spanning chunks */
+    protected static void writeInPieces(ChunkedBuffer buffer, byte[] bytes) throws Exception {
+        var random = new Random(1);
+        for (int offset = 0; offset < bytes.length; ) {
+            var length = Math.min(bytes.length - offset, random.nextInt(40_000));
+            if (length == 1) buffer.write(bytes[offset]);
+            else buffer.write(bytes, offset, length);
+            offset += length;
+        }
+        buffer.close();
+    }
+
+    protected static void assertContents(byte[] expected, ChunkedBuffer buffer) throws Exception {
+        assertEquals(expected.length, buffer.size());
+        assertTrue(Arrays.equals(expected, buffer.toByteArray()));
+        var out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+        try (var in = buffer.newInputStream()) {
+            assertTrue(Arrays.equals(expected, in.readAllBytes()));
+        }
+    }
+
+    public void testInMemory() throws Exception {
+        for (var length : new int[] { 0, 1, ChunkedBuffer.chunkSize, ChunkedBuffer.chunkSize + 1, 200_000 }) {
+            var bytes = randomBytes(length);
+            var buffer = new ChunkedBuffer();
+            writeInPieces(buffer, bytes);
+            assertFalse(buffer.isSpilled());
+            assertContents(bytes, buffer);
+            buffer.release();
+        }
+    }
+
+    public void testSpillAboveThreshold() throws Exception {
+        var bytes = randomBytes(200_000);
+        var buffer = new ChunkedBuffer(50_000, null);
+        writeInPieces(buffer, bytes);
+        assertTrue(buffer.isSpilled());
+        assertContents(bytes, buffer);
+        buffer.release();
+    }
+
+    public void testClose() throws Exception {
+        var bytes = randomBytes(200_000);
+        var buffer = new ChunkedBuffer(50_000, null);
+        writeInPieces(buffer, bytes);
+        assertTrue(buffer.isSpilled());
+        assertNull(buffer.storage.fileOutputOrNull); // The file is no longer open for writing
+        assertContents(bytes, buffer);
+        try { buffer.write(1); fail(); }
+        catch (IOException ignored) { }
+        assertContents(bytes, buffer);
+        buffer.release();
+    }
+
+    public void testToString() throws Exception {
+        var buffer = new ChunkedBuffer();
+        buffer.write("hello".getBytes(UTF_8));
+        var expected = new ByteArrayOutputStream();
+        expected.write("hello".getBytes(UTF_8));
+        assertEquals(expected.toString(), buffer.toString());
+        buffer.release();
+    }
+
+    public void testSpillAboveMemoryBudget() throws Exception {
+        var bytes = randomBytes(200_000);
+        ChunkedBuffer.setMemoryBudget(ChunkedBuffer.getMemoryInUse() + 3 * ChunkedBuffer.chunkSize);
+        try {
+            var buffer = new ChunkedBuffer();
+            writeInPieces(buffer, bytes);
+            assertTrue(buffer.isSpilled());
+            assertContents(bytes, buffer);
+
+            var before = ChunkedBuffer.getMemoryInUse();
+            var small = new ChunkedBuffer();
+            small.write(bytes, 0, 10);
+            assertFalse(small.isSpilled());
+            small.release();
+            buffer.release();
+            assertEquals(before, ChunkedBuffer.getMemoryInUse());
+        }
+        finally {
+            ChunkedBuffer.setMemoryBudget(Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.offerready.xslt.destination;
+
+import com.offerready.xslt.destination.HttpCompression.ContentEncoding;
+import junit.framework.TestCase;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class HttpCompressionTest extends TestCase {
+
+    protected static HttpServletRequest newRequest(String... acceptEncoding) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+                if (method.getName().equals("getHeaders") && "Accept-Encoding".equals(args[0]))
+                    return Collections.enumeration(List.of(acceptEncoding));
+                throw new UnsupportedOperationException(method.getName());
+            });
+    }
+
+    public void testNegotiate() {
+        var compression = new HttpCompression();
+        assertNull(compression.negotiate(newRequest()));
+        assertNull(compression.negotiate(newRequest("identity")));
+        assertNull(compression.negotiate(newRequest("br, gzip;q=0")));
+        assertEquals(ContentEncoding.gzip, compression.negotiate(newRequest("gzip, deflate, br")));
+        assertEquals(ContentEncoding.gzip, compression.negotiate(newRequest("*")));
+        assertEquals(ContentEncoding.deflate, compression.negotiate(newRequest("gzip;q=0.5", "deflate")));
+        assertEquals(ContentEncoding.deflate, compression.negotiate(newRequest("*;q=0.8, gzip;q=0")));
+    }
+
+    public void testIsCompressible() {
+        var compression = new HttpCompression();
+        assertTrue(compression.isCompressible("text/html; charset=UTF-8"));
+        assertTrue(compression.isCompressible("application/json; charset=UTF-8"));
+        assertFalse(compression.isCompressible("application/pdf"));
+        assertFalse(compression.isCompressible("application/ms-excel"));
+        assertFalse(compression.isCompressible("image/png"));
+        assertFalse(compression.isCompressible(null));
+    }
+
+    public void testCompress() throws Exception {
+        var text = "<tr><td>Invoice line</td><td>12.50</td></tr>\n".repeat(1000);
+        var compression = new HttpCompression().setLevel(9).setBufferSize(512);
+        for (var encoding : ContentEncoding.values()) {
+            var compressed = new ByteArrayOutputStream();
+            try (var out = compression.newCompressingStream(encoding, compressed)) { out.write(text.getBytes(UTF_8)); }
+            assertTrue(compressed.size() < text.length() / 10);
+            var in = new ByteArrayInputStream(compressed.toByteArray());
+            try (var decompressed = encoding == ContentEncoding.gzip ? new GZIPInputStream(in) : new InflaterInputStream(in)) {
+                assertEquals(text, new String(decompressed.readAllBytes(), UTF_8));
+            }
+        }
+    }
+}